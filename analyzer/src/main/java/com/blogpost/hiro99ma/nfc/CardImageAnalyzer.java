@@ -0,0 +1,421 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+
+/**
+ * @class	CardImageAnalyzer
+ * @brief	現場で集めた{@link CardImage}ファイルをまとめて検査する(ホスト側ツール)
+ *
+ * - ディレクトリ内のファイルをmmapし、fork/joinで並列に処理する。<br>
+ * - 1ファイルに複数のイメージを連結してもよい。<br>
+ * - FeliCa Lite : MCのシステムコード指定、T3T属性情報(チェックサム、Nmaxb、Ln)、NDEFレコード列を検査する。<br>
+ * - Ultralight : Capability ContainerとNDEF TLVを検査する。<br>
+ * - ホスト側のツールなので、analyzerモジュールに置いてAPKには入れない。
+ *   FelicaLite(Android)に依存しないよう、ブロック番号はここで持つ。<br>
+ *
+ * <pre>
+ * java -jar analyzer/build/libs/analyzer.jar [dir] [parallelism]
+ * </pre>
+ */
+public class CardImageAnalyzer {
+
+	//1タスクで処理するファイル数
+	private static final int LEAF_FILES = 64;
+
+	//FeliCa Liteのブロック(FelicaLiteと同じ値)
+	private static final int PAD0 = 0x00;
+	private static final int PAD1 = 0x01;
+	private static final int PAD13 = 0x0d;
+	private static final int MC = 0x88;
+	private static final int SIZE_BLOCK = 16;
+
+	private static final int T3T_ATTR_SUM_LEN = 14;
+	private static final int T3T_WRITE_F = 9;
+	private static final int WRITE_F_BUSY = 0x0f;		//書込み中
+	private static final int USER_BLOCKS = PAD13 - PAD0 + 1;
+
+
+	private CardImageAnalyzer() {
+		;
+	}
+
+
+	/**
+	 * @class	Stats
+	 * @brief	集計結果
+	 */
+	public static class Stats {
+		public long files;
+		public long unreadableFiles;
+		public long images;
+		public long brokenImages;		//CardImageとして読めない
+
+		public long felica;
+		public long felicaNdef;			//NDEFとして正常
+		public long felicaRaw;			//非NDEF(MC_SYS_OP=0)
+		public long halfFormatted;		//MCと属性情報が食い違う
+		public long writeInProgress;	//WriteFが0x0F(NDEF書込み中に離された)
+		public long badChecksum;
+		public long badMcSystemCode;	//MC_SYS_OPが0/1以外
+		public long badAttribute;		//Ver/Nmaxb/Lnが不正
+		public long badNdef;			//NDEFレコード列が壊れている
+		public long missingBlocks;		//検査に必要なブロックが無い
+
+		public long ultralight;
+		public long ultralightNdef;
+		public long ultralightNoCc;		//Capability Containerが無い
+		public long ultralightBadNdef;
+
+		void add(Stats o) {
+			files += o.files;
+			unreadableFiles += o.unreadableFiles;
+			images += o.images;
+			brokenImages += o.brokenImages;
+			felica += o.felica;
+			felicaNdef += o.felicaNdef;
+			felicaRaw += o.felicaRaw;
+			halfFormatted += o.halfFormatted;
+			writeInProgress += o.writeInProgress;
+			badChecksum += o.badChecksum;
+			badMcSystemCode += o.badMcSystemCode;
+			badAttribute += o.badAttribute;
+			badNdef += o.badNdef;
+			missingBlocks += o.missingBlocks;
+			ultralight += o.ultralight;
+			ultralightNdef += o.ultralightNdef;
+			ultralightNoCc += o.ultralightNoCc;
+			ultralightBadNdef += o.ultralightBadNdef;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append("files              : ").append(files).append('\n');
+			sb.append("  unreadable       : ").append(unreadableFiles).append('\n');
+			sb.append("images             : ").append(images).append('\n');
+			sb.append("  broken           : ").append(brokenImages).append('\n');
+			sb.append("FeliCa Lite        : ").append(felica).append('\n');
+			sb.append("  NDEF ok          : ").append(felicaNdef).append('\n');
+			sb.append("  raw(non NDEF)    : ").append(felicaRaw).append('\n');
+			sb.append("  half formatted   : ").append(halfFormatted).append('\n');
+			sb.append("  write in progress: ").append(writeInProgress).append('\n');
+			sb.append("  bad checksum     : ").append(badChecksum).append('\n');
+			sb.append("  bad MC sys code  : ").append(badMcSystemCode).append('\n');
+			sb.append("  bad attribute    : ").append(badAttribute).append('\n');
+			sb.append("  bad NDEF         : ").append(badNdef).append('\n');
+			sb.append("  missing blocks   : ").append(missingBlocks).append('\n');
+			sb.append("Ultralight         : ").append(ultralight).append('\n');
+			sb.append("  NDEF ok          : ").append(ultralightNdef).append('\n');
+			sb.append("  no CC            : ").append(ultralightNoCc).append('\n');
+			sb.append("  bad NDEF         : ").append(ultralightBadNdef).append('\n');
+			return sb.toString();
+		}
+	}
+
+
+	/**
+	 * ディレクトリ内のファイルを検査する
+	 *
+	 * @param dir			[in]イメージファイルのディレクトリ
+	 * @param parallelism	[in]並列数(<=0ならCPU数)
+	 * @return				集計結果
+	 */
+	public static Stats analyze(File dir, int parallelism) {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			files = new File[0];
+		}
+		ForkJoinPool pool = (parallelism > 0) ? new ForkJoinPool(parallelism) : new ForkJoinPool();
+		try {
+			return pool.invoke(new Task(files, 0, files.length));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static class Task extends RecursiveTask<Stats> {
+		private static final long serialVersionUID = 1L;
+
+		private final File[] mFiles;
+		private final int mStart;
+		private final int mEnd;
+
+		Task(File[] files, int start, int end) {
+			mFiles = files;
+			mStart = start;
+			mEnd = end;
+		}
+
+		@Override
+		protected Stats compute() {
+			if (mEnd - mStart <= LEAF_FILES) {
+				Stats stats = new Stats();
+				for (int i = mStart; i < mEnd; i++) {
+					if (mFiles[i].isFile()) {
+						analyzeFile(mFiles[i], stats);
+					}
+				}
+				return stats;
+			}
+			int mid = (mStart + mEnd) >>> 1;
+			Task left = new Task(mFiles, mStart, mid);
+			left.fork();
+			Stats stats = new Task(mFiles, mid, mEnd).compute();
+			stats.add(left.join());
+			return stats;
+		}
+	}
+
+	private static void analyzeFile(File file, Stats stats) {
+		stats.files++;
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			FileChannel ch = raf.getChannel();
+			if (ch.size() > Integer.MAX_VALUE) {
+				//1回でmmapできないので、このファイルだけ読めなかったことにする
+				stats.unreadableFiles++;
+				return;
+			}
+			MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+			while (buf.hasRemaining()) {
+				CardImage image = CardImage.parse(buf);
+				stats.images++;
+				if (image == null) {
+					//以降の位置は分からないので打ち切る
+					stats.brokenImages++;
+					break;
+				}
+				analyzeImage(image, stats);
+			}
+		} catch (IOException e) {
+			stats.unreadableFiles++;
+		} finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+					//読み込みは終わっているので無視
+				}
+			}
+		}
+	}
+
+	/**
+	 * 1枚分を検査して集計に加える
+	 */
+	public static void analyzeImage(CardImage image, Stats stats) {
+		switch (image.getType()) {
+		case CardImage.TYPE_FELICA_LITE:
+			stats.felica++;
+			analyzeFelica(image, stats);
+			break;
+		case CardImage.TYPE_MIFARE_UL:
+			stats.ultralight++;
+			analyzeUltralight(image, stats);
+			break;
+		default:
+			stats.brokenImages++;
+			break;
+		}
+	}
+
+	private static void analyzeFelica(CardImage image, Stats stats) {
+		byte[] data = image.getData();
+		int mc = image.offsetOf(MC);
+		int pad0 = image.offsetOf(PAD0);
+		if ((mc < 0) || (pad0 < 0)) {
+			stats.missingBlocks++;
+			return;
+		}
+
+		int sysop = data[mc + 3];
+		if ((sysop != 0x00) && (sysop != 0x01)) {
+			stats.badMcSystemCode++;
+			return;
+		}
+		boolean mcNdef = (sysop == 0x01);
+
+		//T3T属性情報
+		int sum = 0;
+		boolean allZero = true;
+		for (int i = 0; i < T3T_ATTR_SUM_LEN; i++) {
+			sum += data[pad0 + i] & 0xff;
+			allZero &= (data[pad0 + i] == 0);
+		}
+		int chksum = ((data[pad0 + 14] & 0xff) << 8) | (data[pad0 + 15] & 0xff);
+		boolean sumOk = (sum == chksum);
+		boolean attrPresent = !allZero || (chksum != 0);
+
+		if (!mcNdef) {
+			if (attrPresent && sumOk) {
+				//属性情報は書いたが、MCが戻っている
+				stats.halfFormatted++;
+			} else {
+				stats.felicaRaw++;
+			}
+			return;
+		}
+		if (!attrPresent) {
+			//MCは書いたが、属性情報を書く前に離された
+			stats.halfFormatted++;
+			return;
+		}
+		if (!sumOk) {
+			stats.badChecksum++;
+			return;
+		}
+		if ((data[pad0 + T3T_WRITE_F] & 0xff) == WRITE_F_BUSY) {
+			//NDEFの書込み途中
+			stats.writeInProgress++;
+			return;
+		}
+
+		int ver = data[pad0] & 0xff;
+		int nmaxb = ((data[pad0 + 3] & 0xff) << 8) | (data[pad0 + 4] & 0xff);
+		int ln = ((data[pad0 + 11] & 0xff) << 16) | ((data[pad0 + 12] & 0xff) << 8) | (data[pad0 + 13] & 0xff);
+		if (((ver >> 4) != 1) || (nmaxb == 0) || (nmaxb > USER_BLOCKS - 1)
+				|| (ln > nmaxb * SIZE_BLOCK)) {
+			stats.badAttribute++;
+			return;
+		}
+
+		//NDEFメッセージ(PAD1～)
+		byte[] msg = new byte[ln];
+		for (int pos = 0; pos < ln; pos += SIZE_BLOCK) {
+			int off = image.offsetOf(PAD1 + pos / SIZE_BLOCK);
+			if (off < 0) {
+				stats.missingBlocks++;
+				return;
+			}
+			System.arraycopy(data, off, msg, pos, Math.min(SIZE_BLOCK, ln - pos));
+		}
+		//Ln=0は初期化済みでメッセージ無し(正常)
+		if ((ln == 0) || checkNdef(msg, 0, ln)) {
+			stats.felicaNdef++;
+		} else {
+			stats.badNdef++;
+		}
+	}
+
+	private static void analyzeUltralight(CardImage image, Stats stats) {
+		byte[] data = image.getData();
+		int cc = image.offsetOf(3);
+		if ((cc < 0) || (data[cc] != (byte)0xe1)) {
+			stats.ultralightNoCc++;
+			return;
+		}
+
+		//ページ4以降のTLV
+		int start = image.offsetOf(4);
+		if (start < 0) {
+			stats.ultralightNoCc++;
+			return;
+		}
+		int end = Math.min(data.length, start + (data[cc + 2] & 0xff) * 8);
+		int pos = start;
+		while (pos < end) {
+			int t = data[pos++] & 0xff;
+			if (t == 0x00) {
+				//NULL TLV
+				continue;
+			}
+			if ((t == 0xfe) || (pos >= end)) {
+				break;
+			}
+			int len = data[pos++] & 0xff;
+			if (len == 0xff) {
+				if (pos + 2 > end) {
+					break;
+				}
+				len = ((data[pos] & 0xff) << 8) | (data[pos + 1] & 0xff);
+				pos += 2;
+			}
+			if (t == 0x03) {
+				if ((pos + len <= end) && ((len == 0) || checkNdef(data, pos, len))) {
+					stats.ultralightNdef++;
+				} else {
+					stats.ultralightBadNdef++;
+				}
+				return;
+			}
+			pos += len;
+		}
+		stats.ultralightBadNdef++;
+	}
+
+	/**
+	 * NDEFレコード列のヘッダ(MB/ME/長さ)が整合しているか
+	 */
+	static boolean checkNdef(byte[] buf, int pos, int len) {
+		int end = pos + len;
+		boolean first = true;
+		while (pos < end) {
+			int hdr = buf[pos++] & 0xff;
+			boolean mb = (hdr & 0x80) != 0;
+			boolean me = (hdr & 0x40) != 0;
+			boolean sr = (hdr & 0x10) != 0;
+			boolean il = (hdr & 0x08) != 0;
+			if (mb != first) {
+				return false;
+			}
+			first = false;
+
+			if (pos >= end) {
+				return false;
+			}
+			int typeLen = buf[pos++] & 0xff;
+			long payloadLen;
+			if (sr) {
+				if (pos >= end) {
+					return false;
+				}
+				payloadLen = buf[pos++] & 0xff;
+			} else {
+				if (pos + 4 > end) {
+					return false;
+				}
+				payloadLen = ((long)(buf[pos] & 0xff) << 24) | ((buf[pos + 1] & 0xff) << 16)
+								| ((buf[pos + 2] & 0xff) << 8) | (buf[pos + 3] & 0xff);
+				pos += 4;
+			}
+			int idLen = 0;
+			if (il) {
+				if (pos >= end) {
+					return false;
+				}
+				idLen = buf[pos++] & 0xff;
+			}
+			long next = pos + typeLen + idLen + payloadLen;
+			if (next > end) {
+				return false;
+			}
+			pos = (int)next;
+			if (me) {
+				return pos == end;
+			}
+		}
+		return false;
+	}
+
+
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.err.println("usage : CardImageAnalyzer [dir] [parallelism]");
+			System.exit(1);
+		}
+		int parallelism = (args.length >= 2) ? Integer.parseInt(args[1]) : 0;
+		long start = System.nanoTime();
+		Stats stats = analyze(new File(args[0]), parallelism);
+		long elapsed = (System.nanoTime() - start) / 1000000;
+		System.out.print(stats);
+		System.out.println("elapsed            : " + elapsed + "ms");
+	}
+}
@@ -1,35 +1,138 @@
 package com.blogpost.hiro99ma.felicaliteread;
 
 import android.content.Intent;
+import android.nfc.NfcAdapter;
 import android.nfc.Tag;
 import android.nfc.TagLostException;
 import android.nfc.tech.MifareUltralight;
 import android.os.RemoteException;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
+import android.view.View;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import com.blogpost.hiro99ma.nfc.FelicaLite;
 import com.blogpost.hiro99ma.nfc.NfcFactory;
+import com.blogpost.hiro99ma.nfc.NfcLog;
+import com.blogpost.hiro99ma.nfc.ReadTuner;
+import com.blogpost.hiro99ma.nfc.TagSessionPublisher;
+import com.blogpost.hiro99ma.nfc.TapJournal;
+import com.blogpost.hiro99ma.nfc.TapLedger;
+import com.blogpost.hiro99ma.nfc.TapTracer;
 
+import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.Executor;
 
 
-public class MainActivity extends AppCompatActivity {
+public class MainActivity extends AppCompatActivity implements NfcAdapter.ReaderCallback {
 
     private static final String TAG = "MainActivity";
+    private static final String JOURNAL_FILE = "tap.journal";
+    private static final int JOURNAL_CAPACITY = 8192;
+    private static final String TRACE_FILE = "trace.csv";
+    //画面更新が追いつかない間は、同じカードのタップをまとめる
+    private static final int SESSION_QUEUE = 4;
+
+    //true:reader mode / false:foreground dispatch
+    private static final boolean USE_READER_MODE = true;
+
+    private TapJournal mJournal;
+    private TextView mSummary;
+    private TagSessionPublisher.Subscription mSubscription;
+    //true:次のタップで読込みブロック数を計測する
+    private volatile boolean mCalibrate = false;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+
+        mJournal = TapJournal.open(new File(getFilesDir(), JOURNAL_FILE), JOURNAL_CAPACITY);
+        if (mJournal == null) {
+            Log.e(TAG, "fail : journal");
+        }
+        NfcFactory.setJournal(mJournal);
+        NfcFactory.setReadTuner(new ReadTuner(this));
+
+        //長押しでトレースを書き出す
+        mSummary = (TextView)findViewById(R.id.text_summary);
+        mSummary.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                exportTrace();
+                return true;
+            }
+        });
+        //タップで、次にかざしたカードで読込みブロック数を計測する
+        mSummary.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                mCalibrate = true;
+                Toast.makeText(MainActivity.this, "Touch card to calibrate.", Toast.LENGTH_SHORT).show();
+            }
+        });
+
+        //タップ結果は購読して画面に出す(NFCのスレッドは待たせない)
+        //runOnUiThread()はUIスレッドからだとその場で実行してしまい、
+        //onNewIntent()のendTap()より前に集計されるので、必ずpost()する
+        final Handler handler = new Handler(Looper.getMainLooper());
+        Executor ui = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        };
+        NfcFactory.getSessionPublisher().subscribe(new TagSessionPublisher.Subscriber() {
+            @Override
+            public void onSubscribe(TagSessionPublisher.Subscription subscription) {
+                mSubscription = subscription;
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(TagSessionPublisher.Session session) {
+                mSummary.setText(TapTracer.getSummary());
+                mSubscription.request(1);
+            }
+
+            @Override
+            public void onComplete() {
+                mSubscription = null;
+            }
+        }, ui, SESSION_QUEUE, TagSessionPublisher.Overflow.COALESCE);
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (mSubscription != null) {
+            mSubscription.cancel();
+            mSubscription = null;
+        }
+        NfcFactory.setJournal(null);
+        NfcFactory.setReadTuner(null);
+        if (mJournal != null) {
+            mJournal.close();
+            mJournal = null;
+        }
+        super.onDestroy();
     }
 
     @Override
     public void onResume() {
         super.onResume();
-        boolean ret = NfcFactory.nfcResume(MainActivity.this);
+        boolean ret;
+        if (USE_READER_MODE) {
+            ret = NfcFactory.nfcResumeReaderMode(MainActivity.this, this, false);
+        } else {
+            ret = NfcFactory.nfcResume(MainActivity.this);
+        }
         if (!ret) {
             Log.e(TAG, "fail : resume");
             Toast.makeText(MainActivity.this, "NFC cannot use.", Toast.LENGTH_LONG).show();
@@ -39,6 +142,9 @@ public class MainActivity extends AppCompatActivity {
     @Override
     public void onPause() {
         NfcFactory.nfcPause(this);
+        if (mJournal != null) {
+            mJournal.sync();
+        }
         super.onPause();
     }
 
@@ -46,7 +152,49 @@ public class MainActivity extends AppCompatActivity {
     public void onNewIntent(Intent intent) {
         super.onNewIntent(intent);
 
-        Tag tag = NfcFactory.getTag(intent);
+        TapTracer.beginTap();
+        try {
+            readTag(NfcFactory.getTag(intent));
+        } finally {
+            TapTracer.endTap();
+        }
+    }
+
+    /**
+     * reader modeでのタグ検出(NFCのワーカースレッドから呼ばれる)
+     */
+    @Override
+    public void onTagDiscovered(Tag tag) {
+        readTag(tag);
+    }
+
+    private void readTag(Tag tag) {
+        if (tag == null) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        long idm = FelicaLite.toIdmLong(tag.getId());
+        TapLedger ledger = NfcFactory.getLedger();
+        int begin = ledger.begin(idm, TapJournal.OP_READ);
+        if (begin == TapLedger.BEGIN_DONE) {
+            //バウンス : 前回読んだ値を使う
+            TapLedger.Entry entry = ledger.get(idm, TapJournal.OP_READ);
+            if (entry != null) {
+                showData((byte[])entry.getResult());
+            }
+            NfcFactory.journal(tag, TapJournal.OP_READ, TapJournal.RESULT_DUPLICATE, start);
+            NfcFactory.publishSession(tag, TapJournal.OP_READ, TapJournal.RESULT_DUPLICATE, (entry != null) ? (byte[])entry.getResult() : null);
+            return;
+        } else if (begin == TapLedger.BEGIN_BUSY) {
+            //別スレッドで読んでいる : 結果はそちらが記録・配信する
+            NfcFactory.journal(tag, TapJournal.OP_READ, TapJournal.RESULT_DUPLICATE, start);
+            NfcFactory.publishSession(tag, TapJournal.OP_READ, TapJournal.RESULT_DUPLICATE, null);
+            return;
+        }
+
+        int result = TapJournal.RESULT_FAIL;
+        byte[] rd = null;
         try {
             MifareUltralight mfl;
             FelicaLite felica = FelicaLite.get(tag);
@@ -54,19 +202,55 @@ public class MainActivity extends AppCompatActivity {
                 return;
             }
             felica.connect();
-            byte[] rd = felica.readBlock(0x83);
+            if (mCalibrate) {
+                mCalibrate = false;
+                Log.d(TAG, "calibrate : " + NfcFactory.calibrateReadTuner(felica) + "blocks");
+            } else {
+                NfcFactory.applyReadTuner(felica);
+            }
+            rd = felica.readBlock(0x83);
             if(rd != null) {
-                String s = "";
-                for (byte r : rd) {
-                    s += String.format("%02x-", r);
-                }
-                Log.d(TAG, s);
+                showData(rd);
+                result = TapJournal.RESULT_OK;
             }
             felica.close();
         } catch (TagLostException e) {
             Log.d(TAG, "Tag Lost.");
+            result = TapJournal.RESULT_TAG_LOST;
         } catch (IOException | RemoteException e) {
             e.printStackTrace();
+        } finally {
+            if (result == TapJournal.RESULT_OK) {
+                ledger.complete(idm, TapJournal.OP_READ, true, rd);
+            } else {
+                ledger.abort(idm, TapJournal.OP_READ, 0);
+            }
+            NfcFactory.journal(tag, TapJournal.OP_READ, result, start);
+            NfcFactory.publishSession(tag, TapJournal.OP_READ, result, rd);
+        }
+    }
+
+    private void showData(byte[] rd) {
+        Log.d(TAG, NfcLog.toHex(rd));
+    }
+
+    private void exportTrace() {
+        File file = new File(getFilesDir(), TRACE_FILE);
+        Writer out = null;
+        try {
+            out = new FileWriter(file);
+            TapTracer.export(out);
+            Toast.makeText(MainActivity.this, file.getPath(), Toast.LENGTH_SHORT).show();
+        } catch (IOException e) {
+            Log.e(TAG, "fail : export trace");
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "fail : close trace");
+                }
+            }
         }
     }
 }
@@ -0,0 +1,164 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+
+/**
+ * @class	CardImage
+ * @brief	カードのメモリイメージ(FeliCa Lite / MIFARE Ultralight共通)
+ *
+ * 読み込み単位(FeliCa Liteはブロック16byte、Ultralightはページ4byte)ごとに、
+ * 番号とデータを持つ。<br>
+ *
+ * シリアライズ形式(big endian)
+ * <pre>
+ * magic(4) version(1) type(1) unitSize(1) uidLen(1) uid infoLen(1) info
+ * unitCount(2) unitNo(2)*unitCount data(unitSize*unitCount)
+ * </pre>
+ *
+ * ホスト側のツール(analyzerモジュールのCardImageAnalyzer)でも使うので、Androidのクラスは使わない。
+ */
+public class CardImage {
+	public static final int TYPE_FELICA_LITE = 1;
+	public static final int TYPE_MIFARE_UL = 2;
+
+	private static final int MAGIC = 0x43494d47;		//"CIMG"
+	private static final int VERSION = 1;
+
+	private final int mType;
+	private final byte[] mUid;
+	private final byte[] mInfo;
+	private final int mUnitSize;
+	private final int[] mUnits;
+	private final byte[] mData;
+
+
+	/**
+	 * @param type		[in]TYPE_xxx
+	 * @param uid		[in]IDm / UID
+	 * @param info		[in]付加情報(FeliCaはPMm、UltralightはGET_VERSIONの応答。null可)
+	 * @param unitSize	[in]読み込み単位のサイズ
+	 * @param units		[in]読み込み単位の番号
+	 * @param data		[in]データ(unitsの順)
+	 */
+	public CardImage(int type, byte[] uid, byte[] info, int unitSize, int[] units, byte[] data) {
+		mType = type;
+		mUid = (uid != null) ? uid : new byte[0];
+		mInfo = (info != null) ? info : new byte[0];
+		mUnitSize = unitSize;
+		mUnits = units;
+		mData = data;
+	}
+
+	public int getType() {
+		return mType;
+	}
+
+	public byte[] getUid() {
+		return mUid;
+	}
+
+	public byte[] getInfo() {
+		return mInfo;
+	}
+
+	public int getUnitSize() {
+		return mUnitSize;
+	}
+
+	public int getUnitCount() {
+		return mUnits.length;
+	}
+
+	public int[] getUnits() {
+		return mUnits;
+	}
+
+	/**
+	 * @return		全データ(unitsの順)
+	 */
+	public byte[] getData() {
+		return mData;
+	}
+
+	/**
+	 * @param unitNo	[in]ブロック番号 / ページ番号
+	 * @return			データ内のオフセット / (-1)含まれていない
+	 */
+	public int offsetOf(int unitNo) {
+		for (int i = 0; i < mUnits.length; i++) {
+			if (mUnits[i] == unitNo) {
+				return i * mUnitSize;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param unitNo	[in]ブロック番号 / ページ番号
+	 * @return			(!=null)データのコピー / (==null)含まれていない
+	 */
+	public byte[] getUnit(int unitNo) {
+		int off = offsetOf(unitNo);
+		if (off < 0) {
+			return null;
+		}
+		return Arrays.copyOfRange(mData, off, off + mUnitSize);
+	}
+
+	public byte[] toByteArray() {
+		int size = 4 + 4 + mUid.length + 1 + mInfo.length + 2 + mUnits.length * 2 + mData.length;
+		ByteBuffer buf = ByteBuffer.allocate(size).order(ByteOrder.BIG_ENDIAN);
+		buf.putInt(MAGIC);
+		buf.put((byte)VERSION);
+		buf.put((byte)mType);
+		buf.put((byte)mUnitSize);
+		buf.put((byte)mUid.length);
+		buf.put(mUid);
+		buf.put((byte)mInfo.length);
+		buf.put(mInfo);
+		buf.putShort((short)mUnits.length);
+		for (int unit : mUnits) {
+			buf.putShort((short)unit);
+		}
+		buf.put(mData);
+		return buf.array();
+	}
+
+	/**
+	 * {@link #toByteArray()}の逆。bufのpositionから読み、読んだ分だけ進める。
+	 *
+	 * @param buf		[in]データ(mmapしたバッファでもよい)
+	 * @return			(!=null)イメージ / (==null)フォーマット不正
+	 */
+	public static CardImage parse(ByteBuffer buf) {
+		try {
+			buf.order(ByteOrder.BIG_ENDIAN);
+			if ((buf.getInt() != MAGIC) || (buf.get() != VERSION)) {
+				return null;
+			}
+			int type = buf.get() & 0xff;
+			int unitSize = buf.get() & 0xff;
+			byte[] uid = new byte[buf.get() & 0xff];
+			buf.get(uid);
+			byte[] info = new byte[buf.get() & 0xff];
+			buf.get(info);
+			int[] units = new int[buf.getShort() & 0xffff];
+			for (int i = 0; i < units.length; i++) {
+				units[i] = buf.getShort() & 0xffff;
+			}
+			byte[] data = new byte[units.length * unitSize];
+			buf.get(data);
+			return new CardImage(type, uid, info, unitSize, units, data);
+		} catch (BufferUnderflowException e) {
+			return null;
+		}
+	}
+
+	public static CardImage parse(byte[] data) {
+		return parse(ByteBuffer.wrap(data));
+	}
+}
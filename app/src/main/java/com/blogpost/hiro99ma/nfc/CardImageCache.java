@@ -0,0 +1,60 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * @class	CardImageCache
+ * @brief	読み込んだ{@link CardImage}をIDm/UIDごとに保持する(LRU)
+ *
+ * FeliCa LiteとUltralightで同じキャッシュを使う。
+ */
+public class CardImageCache {
+	private final LinkedHashMap<Long, CardImage> mMap;
+
+
+	/**
+	 * @param capacity		[in]保持する枚数
+	 */
+	public CardImageCache(final int capacity) {
+		mMap = new LinkedHashMap<Long, CardImage>(capacity * 2, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, CardImage> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * UIDをキーにする。<br>
+	 * 8byte(IDm)は{@link FelicaLite#toIdmLong(byte[])}のまま、
+	 * 8byte未満(Ultralightの7byte UIDなど)は最上位byteに長さを入れて区別する。
+	 */
+	public static long key(byte[] uid) {
+		long key = FelicaLite.toIdmLong(uid);
+		if ((uid != null) && (uid.length < 8)) {
+			key |= (long)uid.length << 56;
+		}
+		return key;
+	}
+
+	public synchronized void put(CardImage image) {
+		mMap.put(key(image.getUid()), image);
+	}
+
+	/**
+	 * @return		(!=null)キャッシュしているイメージ / (==null)無い
+	 */
+	public synchronized CardImage get(byte[] uid) {
+		return mMap.get(key(uid));
+	}
+
+	public synchronized void remove(byte[] uid) {
+		mMap.remove(key(uid));
+	}
+
+	public synchronized void clear() {
+		mMap.clear();
+	}
+}
@@ -0,0 +1,271 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+
+/**
+ * @class	CardLayout
+ * @brief	ユーザ領域(PAD0～PAD13)の固定位置に置いたフィールドの読み書き
+ *
+ * - フィールド定義(ブロック、オフセット、幅、型)は、app/src/main/cardlayout/*.csvから
+ *   ビルド時に生成するクラスが{@link Field}として持つ(app/cardlayout.gradle)。<br>
+ * - バッファは{@link UserAreaChannel}を使う(ブロックのキャッシュ、dirty管理、write-backはそちら)。<br>
+ * - {@link Image#load(Field...)}は指定フィールドが載っているブロックを重複なしに集め、
+ *   未読込みのものだけをまとめて読む。<br>
+ * - setXxx()はバッファを書き換えるだけで、{@link Image#flush()}でdirtyなブロックを1回ずつ書き込む。<br>
+ * - 数値はビッグエンディアン。<br>
+ */
+public class CardLayout {
+	public static final int TYPE_U8 = 0;
+	public static final int TYPE_U16 = 1;
+	public static final int TYPE_U32 = 2;
+	public static final int TYPE_BYTES = 3;
+	public static final int TYPE_ASCII = 4;		//余りは0x00で埋める
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+
+	private CardLayout() {
+		;
+	}
+
+	/**
+	 * @class	Field
+	 * @brief	フィールド定義(1ブロック内に収まること)
+	 */
+	public static class Field {
+		private final String mName;
+		private final int mBlock;
+		private final int mOffset;
+		private final int mWidth;
+		private final int mType;
+
+		/**
+		 * @param name		[in]フィールド名
+		 * @param block		[in]ブロック番号(PAD0～PAD13)
+		 * @param offset	[in]ブロック内のオフセット
+		 * @param width		[in]幅[byte]
+		 * @param type		[in]TYPE_xxx
+		 */
+		public Field(String name, int block, int offset, int width, int type) {
+			if ((block < FelicaLite.PAD0) || (block > FelicaLite.PAD13) || (offset < 0) || (width <= 0) || (offset + width > FelicaLite.SIZE_BLOCK)) {
+				throw new IllegalArgumentException("field : " + name);
+			}
+			if (((type == TYPE_U8) && (width != 1)) || ((type == TYPE_U16) && (width != 2)) || ((type == TYPE_U32) && (width != 4))) {
+				throw new IllegalArgumentException("field width : " + name);
+			}
+			mName = name;
+			mBlock = block;
+			mOffset = offset;
+			mWidth = width;
+			mType = type;
+		}
+
+		public String getName() {
+			return mName;
+		}
+
+		public int getBlock() {
+			return mBlock;
+		}
+
+		public int getOffset() {
+			return mOffset;
+		}
+
+		public int getWidth() {
+			return mWidth;
+		}
+
+		public int getType() {
+			return mType;
+		}
+
+		/**
+		 * @return		ユーザ領域の先頭からの位置
+		 */
+		int position() {
+			return (mBlock - FelicaLite.PAD0) * FelicaLite.SIZE_BLOCK + mOffset;
+		}
+	}
+
+	/**
+	 * フィールドが載っているブロック番号(重複なし、昇順)
+	 *
+	 * @param fields	[in]フィールド
+	 * @return			ブロック番号
+	 */
+	public static int[] planBlocks(Field... fields) {
+		int mask = 0;
+		for (Field f : fields) {
+			mask |= 1 << (f.mBlock - FelicaLite.PAD0);
+		}
+		int[] list = new int[Integer.bitCount(mask)];
+		int num = 0;
+		for (int blk = 0; blk < UserAreaChannel.BLOCK_NUM; blk++) {
+			if ((mask & (1 << blk)) != 0) {
+				list[num++] = FelicaLite.PAD0 + blk;
+			}
+		}
+		return list;
+	}
+
+
+	/**
+	 * @class	Image
+	 * @brief	{@link UserAreaChannel}の上のフィールドアクセス
+	 *
+	 * {@link FelicaLite#connect()}/{@link FelicaLite#close()}は呼び出し側で行うこと。
+	 */
+	public static class Image {
+		private final UserAreaChannel mChannel;
+		private final byte[] mWork = new byte[FelicaLite.SIZE_BLOCK];
+
+		/**
+		 * @param felica	[in]connect済みのFelicaLite
+		 */
+		public Image(FelicaLite felica) {
+			this(new UserAreaChannel(felica));
+		}
+
+		/**
+		 * @param channel	[in]他と共有するバッファ
+		 */
+		public Image(UserAreaChannel channel) {
+			mChannel = channel;
+		}
+
+		public UserAreaChannel getChannel() {
+			return mChannel;
+		}
+
+		/**
+		 * フィールドが載っているブロックのうち、未読込みのものをまとめて読む。<br>
+		 * 読んでいないフィールドをgetXxx()/setXxx()すると、そのブロックだけを個別に読むことになる。
+		 *
+		 * @param fields	[in]読み込むフィールド
+		 * @throws IOException	読込み失敗
+		 */
+		public void load(Field... fields) throws IOException {
+			mChannel.load(planBlocks(fields));
+		}
+
+		/**
+		 * dirtyなブロックを書き込む
+		 *
+		 * @throws IOException	書込み失敗(失敗したブロック以降はdirtyのまま残る)
+		 */
+		public void flush() throws IOException {
+			mChannel.flush();
+		}
+
+		/**
+		 * @return		書込み待ちのブロック番号(昇順)
+		 */
+		public int[] getDirtyBlocks() {
+			return mChannel.getDirtyBlocks();
+		}
+
+		/**
+		 * キャッシュを捨てる(dirtyなブロックも捨てる)
+		 */
+		public void invalidate() {
+			mChannel.invalidate();
+		}
+
+		public long getLong(Field f) throws IOException {
+			read(f);
+			long val = 0;
+			for (int i = 0; i < f.mWidth; i++) {
+				val = (val << 8) | (mWork[i] & 0xff);
+			}
+			return val;
+		}
+
+		public int getInt(Field f) throws IOException {
+			return (int)getLong(f);
+		}
+
+		public byte[] getBytes(Field f) throws IOException {
+			read(f);
+			return Arrays.copyOf(mWork, f.mWidth);
+		}
+
+		public String getString(Field f) throws IOException {
+			read(f);
+			int len = 0;
+			while ((len < f.mWidth) && (mWork[len] != 0x00)) {
+				len++;
+			}
+			return new String(mWork, 0, len, ASCII);
+		}
+
+		/**
+		 * @param val		[in]値(符号なし。幅に収まらなければIllegalArgumentException)
+		 */
+		public void setLong(Field f, long val) throws IOException {
+			if ((f.mWidth < 8) && ((val < 0) || (val >= (1L << (f.mWidth * 8))))) {
+				throw new IllegalArgumentException("range : " + f.mName + "=" + val);
+			}
+			for (int i = f.mWidth - 1; i >= 0; i--) {
+				mWork[i] = (byte)val;
+				val >>= 8;
+			}
+			write(f);
+		}
+
+		/**
+		 * @param val		[in]値(u32では負の値は0x80000000以上として扱う)
+		 */
+		public void setInt(Field f, int val) throws IOException {
+			setLong(f, val & 0xffffffffL);
+		}
+
+		/**
+		 * @param data		[in]データ(幅より短ければ残りは0x00、長ければIllegalArgumentException)
+		 */
+		public void setBytes(Field f, byte[] data) throws IOException {
+			if (data.length > f.mWidth) {
+				throw new IllegalArgumentException("length : " + f.mName + "=" + data.length);
+			}
+			int len = data.length;
+			System.arraycopy(data, 0, mWork, 0, len);
+			Arrays.fill(mWork, len, f.mWidth, (byte)0x00);
+			write(f);
+		}
+
+		/**
+		 * @param str		[in]ASCII文字列(幅より長い、またはASCII以外を含めばIllegalArgumentException)
+		 */
+		public void setString(Field f, String str) throws IOException {
+			for (int i = 0; i < str.length(); i++) {
+				char c = str.charAt(i);
+				if ((c == 0x00) || (c > 0x7f)) {
+					throw new IllegalArgumentException("ascii : " + f.mName);
+				}
+			}
+			setBytes(f, str.getBytes(ASCII));
+		}
+
+		private void read(Field f) throws IOException {
+			mChannel.position(f.position());
+			ByteBuffer buf = ByteBuffer.wrap(mWork, 0, f.mWidth);
+			while (buf.hasRemaining()) {
+				if (mChannel.read(buf) < 0) {
+					throw new IOException("read : " + f.mName);
+				}
+			}
+		}
+
+		private void write(Field f) throws IOException {
+			mChannel.position(f.position());
+			ByteBuffer buf = ByteBuffer.wrap(mWork, 0, f.mWidth);
+			while (buf.hasRemaining()) {
+				mChannel.write(buf);
+			}
+		}
+	}
+}
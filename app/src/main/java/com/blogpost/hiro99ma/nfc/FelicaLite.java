@@ -46,10 +46,23 @@ public class FelicaLite {
 
 	public static final int SIZE_BLOCK = 16;
 
+	//FeliCa Liteの仕様上、1回で読めるブロック数
+	public static final int NBR_FELICA_LITE = 4;
+	//Read Without Encryptionの応答長(1byte)に収まるブロック数
+	public static final int MAX_READ_BLOCKS = 15;
+
+	//dump()で読むブロック(RC、MAC、CKは読めないので除く)
+	private static final int[] DUMP_BLOCKS = new int[] {
+		PAD0, PAD1, PAD2, PAD3, PAD4, PAD5, PAD6, PAD7,
+		PAD8, PAD9, PAD10, PAD11, PAD12, PAD13, REG,
+		ID, D_ID, SER_C, SYS_C, CKV, MC,
+	};
+
 	private static final String TAG = "FelicaLite";
 
 	private Tag mTag;
 	private NfcF mNfcF;
+	private int mMaxReadBlocks = NBR_FELICA_LITE;
 
 
 	private FelicaLite() throws RemoteException {
@@ -57,6 +70,15 @@ public class FelicaLite {
 	}
 
 	public static FelicaLite get(Tag tag) throws RemoteException {
+		int span = TapTracer.begin(TapTracer.STAGE_TECH);
+		try {
+			return getNfcF(tag);
+		} finally {
+			TapTracer.end(span);
+		}
+	}
+
+	private static FelicaLite getNfcF(Tag tag) throws RemoteException {
 		NfcF nfcf = NfcF.get(tag);
 		if (nfcf.isConnected()) {
 			//connect済み
@@ -101,7 +123,12 @@ public class FelicaLite {
 		if (mNfcF == null) {
 			throw new IOException();
 		}
-		mNfcF.connect();
+		int span = TapTracer.begin(TapTracer.STAGE_CONNECT);
+		try {
+			mNfcF.connect();
+		} finally {
+			TapTracer.end(span);
+		}
 	}
 
 
@@ -128,7 +155,12 @@ public class FelicaLite {
 	 */
 	public void close() throws IOException {
 		if (isConnected()) {
-			mNfcF.close();
+			int span = TapTracer.begin(TapTracer.STAGE_CLOSE);
+			try {
+				mNfcF.close();
+			} finally {
+				TapTracer.end(span);
+			}
 		}
 		mTag = null;
 		mNfcF = null;
@@ -150,6 +182,23 @@ public class FelicaLite {
 		return (Tag)mTag;
 	}
 
+	/**
+	 * IDm(8byte)をlongにする
+	 *
+	 * @param idm		[in]IDm({@link Tag#getId()})
+	 * @return			IDm(big endian)。idmがnullの場合は0。
+	 */
+	public static long toIdmLong(byte[] idm) {
+		long val = 0;
+		if (idm != null) {
+			int len = (idm.length < 8) ? idm.length : 8;
+			for (int i = 0; i < len; i++) {
+				val = (val << 8) | (idm[i] & 0xff);
+			}
+		}
+		return val;
+	}
+
 	public int getTimeout() {
 		return mNfcF.getTimeout();
 	}
@@ -158,8 +207,33 @@ public class FelicaLite {
 		mNfcF.setTimeout(timeout);
 	}
 
+	/**
+	 * {@link #readBlock(int[])}で1回に読むブロック数の上限を設定する。<br>
+	 * 端末によって複数ブロックの読込みが不安定なことがあるので、{@link ReadTuner}で決めた値を設定する。
+	 *
+	 * @param num		[in]ブロック数(1～{@link #MAX_READ_BLOCKS})
+	 */
+	public void setMaxReadBlocks(int num) {
+		if (num < 1) {
+			num = 1;
+		} else if (num > MAX_READ_BLOCKS) {
+			num = MAX_READ_BLOCKS;
+		}
+		mMaxReadBlocks = num;
+	}
+
+	public int getMaxReadBlocks() {
+		return mMaxReadBlocks;
+	}
+
 	byte[] transceive(byte[] data) throws IOException {
-		return mNfcF.transceive(data);
+		//コマンドコードを付加情報として記録する
+		int span = TapTracer.begin(TapTracer.STAGE_COMMAND, data[1] & 0xff);
+		try {
+			return mNfcF.transceive(data);
+		} finally {
+			TapTracer.end(span);
+		}
 	}
 
 
@@ -181,24 +255,24 @@ public class FelicaLite {
 		buf[4] = 0x00;
 		buf[5] = 0x00;
 
-		byte[] ret = mNfcF.transceive(buf);
+		byte[] ret = transceive(buf);
 
 		//length check
 		if(ret.length != 18) {
-			Log.e(TAG, "polling : length");
+			NfcLog.e(NfcLog.EV_POLLING_LENGTH, NfcLog.NONE, NfcLog.NONE, NfcLog.NONE, ret.length);
 			return false;
 		}
 		//IDm check
 		byte[] idm = mTag.getId();
 		for(int i=0; i<8; i++) {
 			if(ret[i+2] != idm[i]) {
-				Log.e(TAG, "polling : nfcid");
+				NfcLog.e(NfcLog.EV_POLLING_NFCID, NfcLog.NONE);
 				return false;
 			}
 		}
 		//response code check
 		if(ret[1] != 0x01) {
-			Log.e(TAG, "polling : response code");
+			NfcLog.e(NfcLog.EV_POLLING_RESPONSE, NfcLog.NONE, NfcLog.NONE, NfcLog.NONE, ret[1] & 0xff);
 			return false;
 		}
 
@@ -219,7 +293,7 @@ public class FelicaLite {
 	public boolean writeBlock(int blockNo, byte[] data) throws IOException {
 		if((data == null) || (data.length < 16)) {
 			//データ不正
-			Log.e(TAG, "writeBlock : param");
+			NfcLog.e(NfcLog.EV_WRITE_PARAM, blockNo);
 			return false;
 		}
 
@@ -235,23 +309,23 @@ public class FelicaLite {
 		buf[15] = (byte)blockNo;		//2byte-blocklist(lower)
 		System.arraycopy(data, 0, buf, 16, SIZE_BLOCK);
 
-		byte[] ret = mNfcF.transceive(buf);
+		byte[] ret = transceive(buf);
 
 		//length check
 		if(ret.length != 12) {
-			Log.e(TAG, "writeBlock : length");
+			NfcLog.e(NfcLog.EV_WRITE_LENGTH, blockNo, NfcLog.NONE, NfcLog.NONE, ret.length);
 			return false;
 		}
 		//IDm check
 		for(int i=2+0; i<2+8; i++) {
 			if(ret[i] != buf[i]) {
-				Log.e(TAG, "writeBlock : nfcid");
+				NfcLog.e(NfcLog.EV_WRITE_NFCID, blockNo);
 				return false;
 			}
 		}
 		//status flag check
 		if((ret[1] != 0x09) || (ret[10] != 0x00) || (ret[11] != 0x00)) {
-			Log.e(TAG, "writeBlock : status");
+			NfcLog.e(NfcLog.EV_WRITE_STATUS, blockNo, ret[10] & 0xff, ret[11] & 0xff, ret[1] & 0xff);
 			return false;
 		}
 		return true;
@@ -279,23 +353,23 @@ public class FelicaLite {
 		buf[14] = (byte)0x80;			//2byte-blocklist(upper)
 		buf[15] = (byte)blockNo;		//2byte-blocklist(lower)
 
-		byte[] ret = mNfcF.transceive(buf);
+		byte[] ret = transceive(buf);
 
 		//length check
 		if(ret.length != 29) {
-			Log.e(TAG, "readBlock : length");
+			NfcLog.e(NfcLog.EV_READ_LENGTH, blockNo, NfcLog.NONE, NfcLog.NONE, ret.length);
 			return null;
 		}
 		//IDm check
 		for(int i=2+0; i<2+8; i++) {
 			if(ret[i] != buf[i]) {
-				Log.e(TAG, "readBlock : nfcid");
+				NfcLog.e(NfcLog.EV_READ_NFCID, blockNo);
 				return null;
 			}
 		}
 		//status flag check
 		if((ret[1] != 0x07) || (ret[10] != 0x00) || (ret[11] != 0x00)) {
-			Log.e(TAG, "readBlock : status");
+			NfcLog.e(NfcLog.EV_READ_STATUS, blockNo, ret[10] & 0xff, ret[11] & 0xff, ret[1] & 0xff);
 			return null;
 		}
 
@@ -309,19 +383,38 @@ public class FelicaLite {
 	 * nブロック読み込み<br>
 	 * <br>
 	 * - {@link FelicaLite#connect()}を呼び出しておくこと。<br>
-	 * - blockNo.lengthが4より大きい場合、先頭の4つを使用する。<br>
+	 * - blockNo.lengthが{@link #getMaxReadBlocks()}より大きい場合、先頭から上限までを使用する。<br>
 	 *
-	 * @param blockNo		[in]読込対象のブロック番号(4つまで)
+	 * @param blockNo		[in]読込対象のブロック番号({@link #getMaxReadBlocks()}まで)
 	 * @return				(!=null)読み込んだブロックデータ(blockNoの順) / (==null)エラー
 	 * @throws IOException
 	 */
 	public byte[] readBlock(int[] blockNo) throws IOException {
 		int num = blockNo.length;
-		if(num > 4) {
-			//FeliCa Lite limit
-			Log.w(TAG, "readBlocks : 4blocks limit");
-			num = 4;
+		if(num > mMaxReadBlocks) {
+			//limit
+			NfcLog.w(NfcLog.EV_READS_LIMIT, blockNo[0], NfcLog.NONE, NfcLog.NONE, mMaxReadBlocks);
+			num = mMaxReadBlocks;
 		}
+		return readBlock(blockNo, num);
+	}
+
+	/**
+	 * MAC付き読み込み<br>
+	 * 指定ブロックとMACブロックを1回のコマンドで読む(MACは同時に読んだブロックに対して計算される)。<br>
+	 * <br>
+	 * - {@link FelicaLite#connect()}を呼び出しておくこと。<br>
+	 * - 事前にRCブロックへチャレンジを書き込んでおくこと。<br>
+	 *
+	 * @param blockNo		[in]読込対象のブロック番号
+	 * @return				(!=null)ブロックデータ16byte + MACブロック16byte / (==null)エラー
+	 * @throws IOException
+	 */
+	public byte[] readBlockWithMac(int blockNo) throws IOException {
+		return readBlock(new int[] { blockNo, MAC }, 2);
+	}
+
+	private byte[] readBlock(int[] blockNo, int num) throws IOException {
 		byte[] buf = new byte[14 + num * 2];
 		buf[0] = (byte)(14 + num * 2);	//length
 		buf[1] = (byte)0x06;			//Read Without Encryption
@@ -335,23 +428,23 @@ public class FelicaLite {
 			buf[14 + loop * 2 + 1] = (byte)blockNo[loop];	//2byte-blocklist(lower)
 		}
 
-		byte[] ret = mNfcF.transceive(buf);
+		byte[] ret = transceive(buf);
 
 		//length check
 		if(ret.length != 13 + num * SIZE_BLOCK) {
-			Log.e(TAG, "readBlocks : length");
+			NfcLog.e(NfcLog.EV_READS_LENGTH, blockNo[0], NfcLog.NONE, NfcLog.NONE, ret.length);
 			return null;
 		}
 		//IDm check
 		for(int i=2+0; i<2+8; i++) {
 			if(ret[i] != buf[i]) {
-				Log.e(TAG, "readBlocks : nfcid");
+				NfcLog.e(NfcLog.EV_READS_NFCID, blockNo[0]);
 				return null;
 			}
 		}
 		//status flag check
 		if((ret[1] != 0x07) || (ret[10] != 0x00) || (ret[11] != 0x00) || (ret[12] != num)) {
-			Log.e(TAG, "readBlocks : status");
+			NfcLog.e(NfcLog.EV_READS_STATUS, blockNo[0], ret[10] & 0xff, ret[11] & 0xff, ret[12] & 0xff);
 			return null;
 		}
 
@@ -362,6 +455,55 @@ public class FelicaLite {
 	}
 
 
+	/**
+	 * 任意個のブロック読み込み<br>
+	 * {@link #getMaxReadBlocks()}ずつに分けて{@link #readBlock(int[])}する。<br>
+	 * <br>
+	 * - {@link FelicaLite#connect()}を呼び出しておくこと。<br>
+	 *
+	 * @param blockNo		[in]読込対象のブロック番号
+	 * @return				(!=null)読み込んだブロックデータ(blockNoの順) / (==null)エラー
+	 * @throws IOException
+	 */
+	public byte[] readBlocks(int[] blockNo) throws IOException {
+		byte[] data = new byte[blockNo.length * SIZE_BLOCK];
+		int batch = mMaxReadBlocks;
+		int[] list = null;
+		for (int pos = 0; pos < blockNo.length; pos += batch) {
+			int num = Math.min(batch, blockNo.length - pos);
+			if ((list == null) || (list.length != num)) {
+				list = new int[num];
+			}
+			System.arraycopy(blockNo, pos, list, 0, num);
+			byte[] rd = readBlock(list);
+			if (rd == null) {
+				return null;
+			}
+			System.arraycopy(rd, 0, data, pos * SIZE_BLOCK, rd.length);
+		}
+		return data;
+	}
+
+
+	/**
+	 * 読み込めるブロックをすべて読む<br>
+	 * <br>
+	 * - {@link FelicaLite#connect()}を呼び出しておくこと。<br>
+	 *
+	 * @return				(!=null)読み込んだイメージ / (==null)エラー
+	 * @throws IOException
+	 */
+	public CardImage dump() throws IOException {
+		byte[] data = readBlocks(DUMP_BLOCKS);
+		if (data == null) {
+			Log.e(TAG, "dump : readBlocks");
+			return null;
+		}
+		return new CardImage(CardImage.TYPE_FELICA_LITE, mTag.getId(), getManufacturer(),
+						SIZE_BLOCK, DUMP_BLOCKS.clone(), data);
+	}
+
+
 	/**
 	 * NDEFフォーマット
 	 * <br>
@@ -395,30 +537,35 @@ public class FelicaLite {
 			ret = writeBlock(MC, mc);
 			if (ret) {
 				//Write T3T header
+				//Nbrはどの端末で読んでも使われるので、カードの上限を書く
+				//(この端末の読込みブロック数はsetMaxReadBlocks()で別に決める)
 				byte[] t3t = new byte[] {
 								0x10,			//Ver
-								0x04,			//Nbr
+								(byte)NBR_FELICA_LITE,	//Nbr
 								0x01,			//Nbw
 								0x00, 0x0d,		//Nmaxb
 								0x00, 0x00, 0x00, 0x00,
 								0x00,			//WriteF
 								0x01,			//RW
 								0x00, 0x00, 0x00,		//Ln
-								0x00, 0x23,		//Checksum
+								0x00, 0x00,		//Checksum
 				};
 				if (firstMessage != null) {
 					raw_data = firstMessage.toByteArray();
 					int len = raw_data.length;
 					if (len <= 208) {
 						t3t[0x0d] = (byte)len;
-						int chksum = 0x23 + len;
-						t3t[0x0e] = (byte)(chksum >> 8);
-						t3t[0x0f] = (byte)(chksum & 0xff);
 					} else {
 						Log.w(TAG, "format : too large ndef");
 						raw_data = null;
 					}
 				}
+				int chksum = 0;
+				for (int i = 0; i < 0x0e; i++) {
+					chksum += t3t[i] & 0xff;
+				}
+				t3t[0x0e] = (byte)(chksum >> 8);
+				t3t[0x0f] = (byte)(chksum & 0xff);
 				ret = writeBlock(PAD0, t3t);
 				if (ret) {
 					int blks = 0;
@@ -0,0 +1,156 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+
+/**
+ * @class	FelicaLiteCrypto
+ * @brief	FeliCa Liteのカード鍵(CK)の個別化とMAC検証
+ *
+ * - 個別化鍵 : マスター鍵(3DES 24byte)とIDブロックから、CMAC方式でカード鍵16byteを作る。<br>
+ * - 鍵スケジュール(初期化済みのCipher)とサブ鍵K1はインスタンス生成時に作っておき、
+ *   {@link #diversify(byte[], int, byte[], int)}ではアロケーションしない。<br>
+ * - 作業バッファを持つので、スレッドごとにインスタンスを作ること。<br>
+ * - FeliCa Liteは8byte単位でリトルエンディアンなので、CKブロックへは{@link #toCardOrder(byte[], int, byte[], int)}で並べ替えて書く。<br>
+ */
+public class FelicaLiteCrypto {
+	public static final int SIZE_MASTER_KEY = 24;
+	public static final int SIZE_CARD_KEY = 16;
+
+	private static final int SIZE_DES = 8;
+	private static final int RB = 0x1b;			//64bitブロックのCMAC定数
+
+	private final Cipher mMaster;
+	private final byte[] mK1 = new byte[SIZE_DES];
+	private final byte[] mM1 = new byte[SIZE_DES];
+	private final byte[] mM2 = new byte[SIZE_DES];
+	private final byte[] mWork = new byte[SIZE_DES];
+
+
+	/**
+	 * @param masterKey		[in]マスター鍵(24byte)
+	 * @throws GeneralSecurityException
+	 */
+	public FelicaLiteCrypto(byte[] masterKey) throws GeneralSecurityException {
+		if ((masterKey == null) || (masterKey.length != SIZE_MASTER_KEY)) {
+			throw new GeneralSecurityException("master key length");
+		}
+		mMaster = Cipher.getInstance("DESede/ECB/NoPadding");
+		mMaster.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(masterKey, "DESede"));
+
+		//L = 3DES(MK, 0), K1 = L << 1 (MSBが1ならRBをXOR)
+		byte[] l = new byte[SIZE_DES];
+		mMaster.doFinal(l, 0, SIZE_DES, l, 0);
+		int carry = 0;
+		for (int i = SIZE_DES - 1; i >= 0; i--) {
+			int b = l[i] & 0xff;
+			mK1[i] = (byte)((b << 1) | carry);
+			carry = b >> 7;
+		}
+		if ((l[0] & 0x80) != 0) {
+			mK1[SIZE_DES - 1] ^= RB;
+		}
+	}
+
+	/**
+	 * カード鍵を作る
+	 *
+	 * @param id		[in]IDブロック(16byte)
+	 * @param idOff		[in]idのオフセット
+	 * @param out		[out]カード鍵(16byte, ビッグエンディアン)
+	 * @param outOff	[in]outのオフセット
+	 * @throws GeneralSecurityException
+	 */
+	public void diversify(byte[] id, int idOff, byte[] out, int outOff) throws GeneralSecurityException {
+		//M1 = ID[0..7], M2 = ID[8..15] ^ K1
+		System.arraycopy(id, idOff, mM1, 0, SIZE_DES);
+		for (int i = 0; i < SIZE_DES; i++) {
+			mM2[i] = (byte)(id[idOff + SIZE_DES + i] ^ mK1[i]);
+		}
+
+		//T1 = 3DES(MK, 3DES(MK, M1) ^ M2)
+		mMaster.doFinal(mM1, 0, SIZE_DES, mWork, 0);
+		xor(mWork, mM2);
+		mMaster.doFinal(mWork, 0, SIZE_DES, out, outOff);
+
+		//T2 = 3DES(MK, 3DES(MK, M1 ^ 0x80) ^ M2)
+		mM1[0] ^= (byte)0x80;
+		mMaster.doFinal(mM1, 0, SIZE_DES, mWork, 0);
+		xor(mWork, mM2);
+		mMaster.doFinal(mWork, 0, SIZE_DES, out, outOff + SIZE_DES);
+	}
+
+	/**
+	 * 8byteずつバイト順を逆にする(カード上の並び)
+	 */
+	public static void toCardOrder(byte[] src, int srcOff, byte[] dst, int dstOff) {
+		for (int i = 0; i < SIZE_DES; i++) {
+			dst[dstOff + i] = src[srcOff + SIZE_DES - 1 - i];
+			dst[dstOff + SIZE_DES + i] = src[srcOff + SIZE_DES * 2 - 1 - i];
+		}
+	}
+
+	/**
+	 * 内部認証(MAC検証)
+	 *
+	 * @param cardKey	[in]カード鍵(16byte, ビッグエンディアン)
+	 * @param rc		[in]RCブロックに書いたチャレンジ(16byte, ビッグエンディアン)
+	 * @param data		[in]{@link FelicaLite#readBlockWithMac(int)}の戻り値(32byte)
+	 * @return			true:MACが一致した
+	 * @throws GeneralSecurityException
+	 */
+	public static boolean verifyMac(byte[] cardKey, byte[] rc, byte[] data) throws GeneralSecurityException {
+		Cipher cipher = Cipher.getInstance("DESede/ECB/NoPadding");
+
+		//SK = 3DES-CBC(CK, IV=0, RC)
+		cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(toDesEde(cardKey), "DESede"));
+		byte[] sk = new byte[SIZE_CARD_KEY];
+		byte[] iv = new byte[SIZE_DES];
+		cbc(cipher, iv, rc, 0, SIZE_CARD_KEY, sk);
+
+		//MAC = 3DES-CBC(SK, IV=RC1, ブロックデータ(8byteずつ逆順))の最終ブロックを逆順にしたもの
+		cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(toDesEde(sk), "DESede"));
+		byte[] txt = new byte[SIZE_CARD_KEY];
+		toCardOrder(data, 0, txt, 0);
+		byte[] enc = new byte[SIZE_CARD_KEY];
+		System.arraycopy(rc, 0, iv, 0, SIZE_DES);
+		cbc(cipher, iv, txt, 0, SIZE_CARD_KEY, enc);
+
+		int diff = 0;
+		for (int i = 0; i < SIZE_DES; i++) {
+			diff |= data[SIZE_CARD_KEY + i] ^ enc[SIZE_CARD_KEY - 1 - i];
+		}
+		return diff == 0;
+	}
+
+	private static void cbc(Cipher cipher, byte[] iv, byte[] in, int off, int len, byte[] out) throws GeneralSecurityException {
+		byte[] blk = new byte[SIZE_DES];
+		System.arraycopy(iv, 0, blk, 0, SIZE_DES);
+		for (int pos = 0; pos < len; pos += SIZE_DES) {
+			for (int i = 0; i < SIZE_DES; i++) {
+				blk[i] ^= in[off + pos + i];
+			}
+			cipher.doFinal(blk, 0, SIZE_DES, out, pos);
+			System.arraycopy(out, pos, blk, 0, SIZE_DES);
+		}
+	}
+
+	/**
+	 * 2-key 3DES(K1||K2)を24byte(K1||K2||K1)にする
+	 */
+	private static byte[] toDesEde(byte[] key) {
+		byte[] k = new byte[SIZE_MASTER_KEY];
+		System.arraycopy(key, 0, k, 0, SIZE_CARD_KEY);
+		System.arraycopy(key, 0, k, SIZE_CARD_KEY, SIZE_DES);
+		return k;
+	}
+
+	private static void xor(byte[] dst, byte[] src) {
+		for (int i = 0; i < SIZE_DES; i++) {
+			dst[i] ^= src[i];
+		}
+	}
+}
@@ -0,0 +1,281 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.util.Log;
+
+
+/**
+ * @class	IdmIndex
+ * @brief	IDmの集合(許可リスト/失効リストなど)をファイルからmmapして引く
+ *
+ * - IDmはlong({@link FelicaLite#toIdmLong(byte[])})をキーにしたopen addressing(線形探索)。<br>
+ * - ファイルをmmapするだけなので、件数によらずロードは一定時間。<br>
+ * - 検索時のアロケーションは無い。<br>
+ * - 差し替えは{@link Holder}で行う。<br>
+ * - {@link #build(long[], int, File)}は一時ファイルに書いてからrenameするので、
+ *   mmap中のファイルと同じパスに作り直してもよい(mmap中のインデックスは古い内容のまま)。<br>
+ *
+ * ファイル形式(big endian)
+ * <pre>
+ *  0 : magic
+ *  4 : version
+ *  8 : slot数(2の累乗)
+ * 12 : 登録数
+ * 16 : IDm=0を含むか(0/1)
+ * 24 : slot(long) * slot数。0は空き。
+ * </pre>
+ */
+public class IdmIndex {
+	private static final String TAG = "IdmIndex";
+
+	private static final int MAGIC = 0x49444d58;		//"IDMX"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 24;
+	//ファイル全体を1回でmmapできる大きさ(Integer.MAX_VALUE以下)にする
+	private static final int MAX_CAPACITY = 1 << 27;
+	private static final long MAX_FILE_SIZE = HEADER_SIZE + (long)MAX_CAPACITY * 8;
+
+	private final LongBuffer mSlots;
+	private final int mMask;
+	private final int mCount;
+	private final boolean mHasZero;
+
+
+	private IdmIndex(LongBuffer slots, int capacity, int count, boolean hasZero) {
+		mSlots = slots;
+		mMask = capacity - 1;
+		mCount = count;
+		mHasZero = hasZero;
+	}
+
+	/**
+	 * ファイルをmmapして開く
+	 *
+	 * @param file		[in]{@link #build(long[], int, File)}で作ったファイル
+	 * @return			(!=null)インデックス / (==null)エラー
+	 */
+	public static IdmIndex load(File file) {
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			FileChannel ch = raf.getChannel();
+			long size = ch.size();
+			if ((size < HEADER_SIZE) || (size > MAX_FILE_SIZE)) {
+				Log.e(TAG, "load : size");
+				return null;
+			}
+			MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			map.order(ByteOrder.BIG_ENDIAN);
+
+			int capacity = map.getInt(8);
+			int count = map.getInt(12);
+			boolean hasZero = (map.getInt(16) != 0);
+			//空きslotが無いと、contains()が終わらない
+			if ((map.getInt(0) != MAGIC) || (map.getInt(4) != VERSION)
+					|| (capacity <= 0) || (capacity > MAX_CAPACITY) || ((capacity & (capacity - 1)) != 0)
+					|| (count < 0) || (count - (hasZero ? 1 : 0) >= capacity)
+					|| (size != HEADER_SIZE + (long)capacity * 8)) {
+				Log.e(TAG, "load : format");
+				return null;
+			}
+
+			map.position(HEADER_SIZE);
+			LongBuffer slots = map.slice().order(ByteOrder.BIG_ENDIAN).asLongBuffer();
+			return new IdmIndex(slots, capacity, count, hasZero);
+		} catch (IOException e) {
+			Log.e(TAG, "load : ioexception");
+			return null;
+		} finally {
+			//mmapはcloseしても有効
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+					Log.e(TAG, "load : close");
+				}
+			}
+		}
+	}
+
+	/**
+	 * インデックスファイルを作る
+	 *
+	 * @param idms		[in]IDm(重複可)
+	 * @param num		[in]idmsの有効数
+	 * @param file		[out]出力先(一時ファイル"file.tmp"に書いてからrenameする)
+	 * @return			true:成功 / false:失敗
+	 */
+	public static boolean build(long[] idms, int num, File file) {
+		//負荷率が1/2以下になるようにする
+		int capacity = 2;
+		while (capacity < (long)num * 2) {
+			if (capacity >= MAX_CAPACITY) {
+				Log.e(TAG, "build : too many");
+				return false;
+			}
+			capacity <<= 1;
+		}
+		int mask = capacity - 1;
+
+		long[] slots = new long[capacity];
+		int count = 0;
+		boolean hasZero = false;
+		for (int i = 0; i < num; i++) {
+			long key = idms[i];
+			if (key == 0) {
+				if (!hasZero) {
+					hasZero = true;
+					count++;
+				}
+				continue;
+			}
+			int pos = hash(key) & mask;
+			while ((slots[pos] != 0) && (slots[pos] != key)) {
+				pos = (pos + 1) & mask;
+			}
+			if (slots[pos] == 0) {
+				slots[pos] = key;
+				count++;
+			}
+		}
+
+		File tmp = new File(file.getPath() + ".tmp");
+		if (!writeFile(tmp, slots, count, hasZero)) {
+			tmp.delete();
+			return false;
+		}
+		//同じファイルシステム内のrenameなので、置き換えはアトミック
+		if (!tmp.renameTo(file)) {
+			Log.e(TAG, "build : rename");
+			tmp.delete();
+			return false;
+		}
+		return true;
+	}
+
+	private static boolean writeFile(File file, long[] slots, int count, boolean hasZero) {
+		int capacity = slots.length;
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(file);
+			FileChannel ch = out.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+			header.putInt(MAGIC).putInt(VERSION).putInt(capacity).putInt(count).putInt(hasZero ? 1 : 0);
+			header.rewind();
+			while (header.hasRemaining()) {
+				ch.write(header);
+			}
+
+			ByteBuffer body = ByteBuffer.allocate(64 * 1024).order(ByteOrder.BIG_ENDIAN);
+			for (long slot : slots) {
+				if (!body.hasRemaining()) {
+					body.flip();
+					while (body.hasRemaining()) {
+						ch.write(body);
+					}
+					body.clear();
+				}
+				body.putLong(slot);
+			}
+			body.flip();
+			while (body.hasRemaining()) {
+				ch.write(body);
+			}
+			out.getFD().sync();
+			return true;
+		} catch (IOException e) {
+			Log.e(TAG, "build : ioexception");
+			return false;
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					Log.e(TAG, "build : close");
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param idm		[in]IDm({@link FelicaLite#toIdmLong(byte[])})
+	 * @return			true:登録されている
+	 */
+	public boolean contains(long idm) {
+		if (idm == 0) {
+			return mHasZero;
+		}
+		int pos = hash(idm) & mMask;
+		for (int i = 0; i <= mMask; i++) {
+			long slot = mSlots.get(pos);
+			if (slot == idm) {
+				return true;
+			}
+			if (slot == 0) {
+				return false;
+			}
+			pos = (pos + 1) & mMask;
+		}
+		//空きslotが無い(ファイルが壊れている)
+		return false;
+	}
+
+	public int size() {
+		return mCount;
+	}
+
+	private static int hash(long key) {
+		//MurmurHash3 fmix64
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int)key;
+	}
+
+
+	/**
+	 * @class	Holder
+	 * @brief	検索中でも差し替えられるようにする
+	 *
+	 * 新しいリストを{@link IdmIndex#load(File)}してから{@link #swap(IdmIndex)}する。<br>
+	 * 古いインデックスは参照が無くなればGCでunmapされる。
+	 */
+	public static class Holder {
+		private final AtomicReference<IdmIndex> mIndex;
+
+		public Holder(IdmIndex index) {
+			mIndex = new AtomicReference<IdmIndex>(index);
+		}
+
+		/**
+		 * @return		差し替え前のインデックス
+		 */
+		public IdmIndex swap(IdmIndex index) {
+			return mIndex.getAndSet(index);
+		}
+
+		public IdmIndex get() {
+			return mIndex.get();
+		}
+
+		/**
+		 * @return		true:登録されている / false:登録されていない(インデックス未設定を含む)
+		 */
+		public boolean contains(long idm) {
+			IdmIndex index = mIndex.get();
+			return (index != null) && index.contains(idm);
+		}
+	}
+}
@@ -0,0 +1,348 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+
+/**
+ * @class	KeyProvisioner
+ * @brief	FeliCa Liteへ個別化カード鍵(CK)と鍵バージョン(CKV)を書き込む
+ *
+ * - IDブロックが事前に分かっている場合は{@link #prefetch(byte[])}しておくと、
+ *   スレッドプールで鍵を作っておき、タップ時は書込みだけになる。<br>
+ * - 分かっていない場合は{@link #provision(FelicaLite, boolean)}の中で作る。<br>
+ * - 書込み後、CKVの読み戻しとMAC付き読込み(内部認証)で検証する。<br>
+ * - 鍵の計算はスレッドごとの{@link FelicaLiteCrypto}で行う。<br>
+ * - 事前計算した鍵は{@link #MAX_PREFETCH}件、{@link #PREFETCH_TTL_MS}までしか持たない。<br>
+ * - {@link #provision(FelicaLite, boolean)}は作業バッファを持つので、1つのスレッド(NFCのスレッド)から呼ぶこと。<br>
+ */
+public class KeyProvisioner {
+	public static final int RESULT_OK = 0;
+	public static final int RESULT_READ_ID = 1;
+	public static final int RESULT_DERIVE = 2;
+	public static final int RESULT_WRITE_CK = 3;
+	public static final int RESULT_WRITE_CKV = 4;
+	public static final int RESULT_VERIFY = 5;
+	public static final int RESULT_LOCK = 6;
+
+	private static final String TAG = "KeyProvisioner";
+
+	//事前計算した鍵を持っておく上限
+	public static final int MAX_PREFETCH = 256;
+	public static final long PREFETCH_TTL_MS = 10 * 60 * 1000;
+
+	//MCのMC_ALL(0x00で1次発行済み。カード全体が対象で、元に戻せない)
+	private static final int MC_ALL = 2;
+
+	private final byte[] mMasterKey;
+	private final int mKeyVersion;
+	private final ExecutorService mPool;
+	private final ThreadLocal<FelicaLiteCrypto> mCrypto;
+	private final ConcurrentHashMap<Long, Prefetch> mPrefetched = new ConcurrentHashMap<Long, Prefetch>();
+	private final SecureRandom mRandom = new SecureRandom();
+	//provision()の作業バッファ
+	private final byte[] mKey = new byte[FelicaLiteCrypto.SIZE_CARD_KEY];
+	private final byte[] mBlock = new byte[FelicaLite.SIZE_BLOCK];
+	private final byte[] mRc = new byte[FelicaLite.SIZE_BLOCK];
+
+	private final AtomicLong mIssued = new AtomicLong();
+	private final AtomicLong mFailed = new AtomicLong();
+	private final long mStartTime = System.nanoTime();
+
+	private static class Prefetch {
+		final byte[] mId;
+		final FutureTask<byte[]> mKey;
+		final long mTime;
+
+		Prefetch(byte[] id, FutureTask<byte[]> key) {
+			mId = id;
+			mKey = key;
+			mTime = System.currentTimeMillis();
+		}
+
+		/**
+		 * 計算済みの鍵を消す
+		 */
+		void discard() {
+			mKey.cancel(true);
+			if (mKey.isDone() && !mKey.isCancelled()) {
+				try {
+					Arrays.fill(mKey.get(), (byte)0);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (ExecutionException e) {
+					//計算に失敗していれば鍵は無い
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * @param masterKey		[in]マスター鍵(24byte)
+	 * @param keyVersion	[in]CKVに書く鍵バージョン
+	 * @param threads		[in]鍵計算のスレッド数
+	 */
+	public KeyProvisioner(byte[] masterKey, int keyVersion, int threads) {
+		mMasterKey = masterKey.clone();
+		mKeyVersion = keyVersion;
+		mPool = Executors.newFixedThreadPool(threads);
+		mCrypto = new ThreadLocal<FelicaLiteCrypto>() {
+			@Override
+			protected FelicaLiteCrypto initialValue() {
+				try {
+					return new FelicaLiteCrypto(mMasterKey);
+				} catch (GeneralSecurityException e) {
+					Log.e(TAG, "crypto : init");
+					return null;
+				}
+			}
+		};
+	}
+
+	/**
+	 * タップ前に鍵を作っておく
+	 *
+	 * @param idBlock	[in]IDブロック(16byte。先頭8byteがIDm)
+	 * @return			true:受け付けた(計算中・計算済みを含む) / false:上限に達している
+	 */
+	public boolean prefetch(final byte[] idBlock) {
+		final byte[] id = idBlock.clone();
+		long idm = FelicaLite.toIdmLong(id);
+		if (mPrefetched.containsKey(idm)) {
+			return true;
+		}
+		if (mPrefetched.size() >= MAX_PREFETCH) {
+			expire();
+			if (mPrefetched.size() >= MAX_PREFETCH) {
+				Log.w(TAG, "prefetch : full");
+				return false;
+			}
+		}
+		FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws Exception {
+				byte[] key = new byte[FelicaLiteCrypto.SIZE_CARD_KEY];
+				derive(id, key);
+				return key;
+			}
+		});
+		if (mPrefetched.putIfAbsent(idm, new Prefetch(id, task)) == null) {
+			mPool.execute(task);
+		}
+		return true;
+	}
+
+	/**
+	 * {@link #PREFETCH_TTL_MS}を過ぎた鍵を消す
+	 */
+	public void expire() {
+		long limit = System.currentTimeMillis() - PREFETCH_TTL_MS;
+		Iterator<Map.Entry<Long, Prefetch>> it = mPrefetched.entrySet().iterator();
+		while (it.hasNext()) {
+			Prefetch pre = it.next().getValue();
+			if (pre.mTime < limit) {
+				it.remove();
+				pre.discard();
+			}
+		}
+	}
+
+	/**
+	 * カード鍵を書き込んで検証する
+	 * <br>
+	 * - {@link FelicaLite#connect()}を呼び出しておくこと。<br>
+	 * - lockはCK/CKVだけのロックではなく、カード全体の1次発行(MC_ALL=0x00)。
+	 *   FeliCa LiteにはCK/CKVだけをロックするビットが無い。
+	 *   ID/D_ID/SER_C/SYS_C/CKV/CK/MCなどのシステムブロックが書換え不可になり、元に戻せない。<br>
+	 *
+	 * @param felica	[in]発行対象
+	 * @param lock		[in]true:検証後にカード全体を1次発行済みにする(MC_ALL=0x00。元に戻せない)
+	 * @return			RESULT_xxx
+	 * @throws IOException
+	 */
+	public int provision(FelicaLite felica, boolean lock) throws IOException {
+		int ret = doProvision(felica, lock);
+		if (ret == RESULT_OK) {
+			mIssued.incrementAndGet();
+		} else {
+			mFailed.incrementAndGet();
+		}
+		return ret;
+	}
+
+	private int doProvision(FelicaLite felica, boolean lock) throws IOException {
+		byte[] id = felica.readBlock(FelicaLite.ID);
+		if (id == null) {
+			Log.e(TAG, "provision : read ID");
+			return RESULT_READ_ID;
+		}
+
+		byte[] key = mKey;
+		if (!takePrefetched(id, key)) {
+			try {
+				derive(id, key);
+			} catch (GeneralSecurityException e) {
+				Log.e(TAG, "provision : derive");
+				return RESULT_DERIVE;
+			}
+		}
+
+		try {
+			return writeKey(felica, key, lock);
+		} finally {
+			Arrays.fill(key, (byte)0);
+		}
+	}
+
+	private int writeKey(FelicaLite felica, byte[] key, boolean lock) throws IOException {
+		//CK
+		byte[] blk = mBlock;
+		FelicaLiteCrypto.toCardOrder(key, 0, blk, 0);
+		boolean ok = felica.writeBlock(FelicaLite.CK, blk);
+		Arrays.fill(blk, (byte)0);
+		if (!ok) {
+			Log.e(TAG, "provision : write CK");
+			return RESULT_WRITE_CK;
+		}
+
+		//CKV
+		blk[0] = (byte)(mKeyVersion & 0xff);
+		blk[1] = (byte)((mKeyVersion >> 8) & 0xff);
+		if (!felica.writeBlock(FelicaLite.CKV, blk)) {
+			Log.e(TAG, "provision : write CKV");
+			return RESULT_WRITE_CKV;
+		}
+
+		if (!verify(felica, key)) {
+			return RESULT_VERIFY;
+		}
+
+		if (lock) {
+			byte[] mc = felica.readBlock(FelicaLite.MC);
+			if (mc == null) {
+				Log.e(TAG, "provision : read MC");
+				return RESULT_LOCK;
+			}
+			mc[MC_ALL] = 0x00;
+			if (!felica.writeBlock(FelicaLite.MC, mc)) {
+				Log.e(TAG, "provision : write MC");
+				return RESULT_LOCK;
+			}
+		}
+		return RESULT_OK;
+	}
+
+	/**
+	 * CKVの読み戻しと、IDブロックのMAC付き読込みで検証する
+	 */
+	private boolean verify(FelicaLite felica, byte[] key) throws IOException {
+		byte[] ckv = felica.readBlock(FelicaLite.CKV);
+		if ((ckv == null) || ((ckv[0] & 0xff) != (mKeyVersion & 0xff)) || ((ckv[1] & 0xff) != ((mKeyVersion >> 8) & 0xff))) {
+			Log.e(TAG, "verify : CKV");
+			return false;
+		}
+
+		byte[] rc = mRc;
+		mRandom.nextBytes(rc);
+		byte[] blk = mBlock;
+		FelicaLiteCrypto.toCardOrder(rc, 0, blk, 0);
+		if (!felica.writeBlock(FelicaLite.RC, blk)) {
+			Log.e(TAG, "verify : write RC");
+			return false;
+		}
+		byte[] data = felica.readBlockWithMac(FelicaLite.ID);
+		if (data == null) {
+			Log.e(TAG, "verify : read MAC");
+			return false;
+		}
+		try {
+			if (!FelicaLiteCrypto.verifyMac(key, rc, data)) {
+				Log.e(TAG, "verify : MAC");
+				return false;
+			}
+		} catch (GeneralSecurityException e) {
+			Log.e(TAG, "verify : crypto");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 事前計算した鍵をoutにコピーする(持っていた鍵は消す)
+	 *
+	 * @return		true:コピーした / false:無い
+	 */
+	private boolean takePrefetched(byte[] id, byte[] out) {
+		Prefetch pre = mPrefetched.remove(FelicaLite.toIdmLong(id));
+		if (pre == null) {
+			return false;
+		}
+		if (!Arrays.equals(pre.mId, id)) {
+			//IDm以外(DFCなど)が違う場合は作り直す
+			pre.discard();
+			return false;
+		}
+		try {
+			byte[] key = pre.mKey.get();
+			System.arraycopy(key, 0, out, 0, FelicaLiteCrypto.SIZE_CARD_KEY);
+			Arrays.fill(key, (byte)0);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException e) {
+			Log.e(TAG, "prefetch : derive");
+			return false;
+		}
+	}
+
+	private void derive(byte[] id, byte[] out) throws GeneralSecurityException {
+		FelicaLiteCrypto crypto = mCrypto.get();
+		if (crypto == null) {
+			throw new GeneralSecurityException("crypto");
+		}
+		crypto.diversify(id, 0, out, 0);
+	}
+
+	public long getIssued() {
+		return mIssued.get();
+	}
+
+	public long getFailed() {
+		return mFailed.get();
+	}
+
+	/**
+	 * @return		生成してからの発行速度[枚/分]
+	 */
+	public double getCardsPerMinute() {
+		double minutes = (System.nanoTime() - mStartTime) / 60000000000.0;
+		return (minutes > 0) ? mIssued.get() / minutes : 0;
+	}
+
+	/**
+	 * スレッドプールを止める
+	 */
+	public void shutdown() {
+		mPool.shutdownNow();
+		for (Prefetch pre : mPrefetched.values()) {
+			pre.discard();
+		}
+		mPrefetched.clear();
+		Arrays.fill(mMasterKey, (byte)0);
+	}
+}
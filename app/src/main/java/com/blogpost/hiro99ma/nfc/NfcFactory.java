@@ -13,10 +13,12 @@ import android.nfc.NdefRecord;
 import android.nfc.NfcAdapter;
 import android.nfc.NfcManager;
 import android.nfc.Tag;
+import android.nfc.TagLostException;
 import android.nfc.tech.MifareUltralight;
 import android.nfc.tech.Ndef;
 import android.nfc.tech.NdefFormatable;
 import android.nfc.tech.NfcF;
+import android.os.Bundle;
 import android.os.RemoteException;
 import android.util.Log;
 
@@ -48,6 +50,31 @@ public class NfcFactory {
     //空フォーマット用
 	private static final NdefMessage mNdefEmpty = new NdefMessage(new NdefRecord(NdefRecord.TNF_EMPTY, null, null, null));
 
+	//タップ記録(nullなら記録しない)
+	private static TapJournal mJournal = null;
+
+	//読込みブロック数の調整(nullなら調整しない)
+	private static ReadTuner mTuner = null;
+
+	//reader modeのpresence check間隔[ms]
+	//短いとコマンド送信中のpresence checkと衝突しやすい
+	private static final int PRESENCE_CHECK_DELAY = 500;
+
+	//nfcResumeReaderMode()で有効にしたかどうか
+	private static boolean mReaderMode = false;
+
+	//カードのバウンスで同じ操作を繰り返さないための記録
+	private static final int LEDGER_SLOTS = 256;
+	private static final int LEDGER_WINDOW_MS = 3000;
+	private static final TapLedger mLedger = new TapLedger(LEDGER_SLOTS, LEDGER_WINDOW_MS);
+
+	//dumpCard()で読んだイメージ
+	private static final int CARD_CACHE_SIZE = 32;
+	private static final CardImageCache mCardCache = new CardImageCache(CARD_CACHE_SIZE);
+
+	//タップ結果の配信先(購読者がいなければ何もしない)
+	private static final TagSessionPublisher mSessions = new TagSessionPublisher();
+
 	
     /**
      * onResume()時の動作
@@ -57,6 +84,15 @@ public class NfcFactory {
      * 						false:できなかった
      */
 	public static boolean nfcResume(Activity activity) {
+		int span = TapTracer.begin(TapTracer.STAGE_RESUME);
+		try {
+			return enableDispatch(activity);
+		} finally {
+			TapTracer.end(span);
+		}
+	}
+
+	private static boolean enableDispatch(Activity activity) {
 		//NFC
 		NfcManager mng = (NfcManager)activity.getSystemService(Context.NFC_SERVICE);
 		if (mng == null) {
@@ -78,9 +114,64 @@ public class NfcFactory {
 						0);		//flagなし
 		
 		adapter.enableForegroundDispatch(activity, pendingIntent, mFilters, mTechLists);
+		mReaderMode = false;
 		
 		return true;
 	}
+
+	/**
+	 * onResume()時の動作(reader mode)<br />
+	 * {@link #nfcResume(Activity)}の代わりに呼び出す。<br />
+	 * <br />
+	 * - NFC-F(とNFC-A)だけをポーリングし、AndroidのNDEFチェックは行わない。<br />
+	 * - Intentを経由しないので、onPause()/onNewIntent()は呼ばれない。<br />
+	 * - callbackはNFCのワーカースレッドから呼ばれる。UIの更新はrunOnUiThread()などで行うこと。<br />
+	 *
+	 * @param activity		現在のActivity。だいたいthisを渡すことになる。
+	 * @param callback		タグ検出時に呼ばれる
+	 * @param withNfcA		true:MIFARE Ultralight用にNFC-Aも検出する
+	 * @return				true:NFCタグ検出の準備ができた<br />
+	 * 						false:できなかった
+	 */
+	public static boolean nfcResumeReaderMode(Activity activity, final NfcAdapter.ReaderCallback callback, boolean withNfcA) {
+		int span = TapTracer.begin(TapTracer.STAGE_RESUME);
+		try {
+			NfcManager mng = (NfcManager)activity.getSystemService(Context.NFC_SERVICE);
+			if (mng == null) {
+				Log.e(TAG, "no NfcManager");
+				return false;
+			}
+			NfcAdapter adapter = mng.getDefaultAdapter();
+			if (adapter == null) {
+				Log.e(TAG, "no NfcService");
+				return false;
+			}
+
+			int flags = NfcAdapter.FLAG_READER_NFC_F | NfcAdapter.FLAG_READER_SKIP_NDEF_CHECK;
+			if (withNfcA) {
+				flags |= NfcAdapter.FLAG_READER_NFC_A;
+			}
+			Bundle extras = new Bundle();
+			extras.putInt(NfcAdapter.EXTRA_READER_PRESENCE_CHECK_DELAY, PRESENCE_CHECK_DELAY);
+
+			adapter.enableReaderMode(activity, new NfcAdapter.ReaderCallback() {
+				@Override
+				public void onTagDiscovered(Tag tag) {
+					TapTracer.beginTap();
+					try {
+						callback.onTagDiscovered(tag);
+					} finally {
+						TapTracer.endTap();
+					}
+				}
+			}, flags, extras);
+			mReaderMode = true;
+
+			return true;
+		} finally {
+			TapTracer.end(span);
+		}
+	}
 	
 	/**
 	 * onPause()時の動作
@@ -88,6 +179,11 @@ public class NfcFactory {
 	 * @param activity		現在のActivity。だいたいthisを渡すことになる。
 	 */
 	public static void nfcPause(Activity activity) {
+		if (!mReaderMode) {
+			//foreground dispatchでは、タグ検出時にもonPause()が呼ばれる
+			TapTracer.markDispatch();
+		}
+
 		NfcManager mng = (NfcManager)activity.getSystemService(Context.NFC_SERVICE);
 		if (mng == null) {
 			Log.e(TAG, "no NfcManager");
@@ -99,12 +195,146 @@ public class NfcFactory {
 			return;
 		}
 
-		if (activity.isFinishing()) {
+		if (mReaderMode) {
+			//reader modeはonPause()で必ず無効にする
+			adapter.disableReaderMode(activity);
+			mReaderMode = false;
+		} else if (activity.isFinishing()) {
 			adapter.disableForegroundDispatch(activity);
 		}
 	}
 
 	
+	/**
+	 * nfcActionXxx()の結果を記録するジャーナルを設定する
+	 *
+	 * @param journal		記録先。nullで記録しない。
+	 */
+	public static void setJournal(TapJournal journal) {
+		mJournal = journal;
+	}
+
+	/**
+	 * FeliCa Liteの読込みで使うReadTunerを設定する
+	 *
+	 * @param tuner			nullで調整しない(1回4ブロック)
+	 */
+	public static void setReadTuner(ReadTuner tuner) {
+		mTuner = tuner;
+	}
+
+	/**
+	 * ReadTunerが設定されていれば、計測済みの読込みブロック数を設定する。<br />
+	 * 未計測のプロファイルであれば何もしない(1回4ブロック)。
+	 *
+	 * @param felica		connect済みのFelicaLite
+	 */
+	public static void applyReadTuner(FelicaLite felica) {
+		ReadTuner tuner = mTuner;
+		if (tuner != null) {
+			tuner.apply(felica);
+		}
+	}
+
+	/**
+	 * 読込みブロック数を計測して保存する(キャリブレーション)。<br />
+	 * RFのやりとりが多いので、通常のタップでは呼ばないこと。
+	 *
+	 * @param felica		connect済みのFelicaLite
+	 * @return				(>0)決めたブロック数 / (<=0)計測できなかった、またはReadTuner未設定
+	 * @throws TagLostException
+	 */
+	public static int calibrateReadTuner(FelicaLite felica) throws TagLostException {
+		ReadTuner tuner = mTuner;
+		if (tuner == null) {
+			return 0;
+		}
+		return tuner.tune(felica);
+	}
+
+	/**
+	 * ジャーナルに1タップ分を記録する
+	 *
+	 * @param tag			対象のTag
+	 * @param op			操作(TapJournal.OP_xxx)
+	 * @param result		結果(TapJournal.RESULT_xxx)
+	 * @param startNanos	処理開始時の{@link System#nanoTime()}
+	 */
+	public static void journal(Tag tag, int op, int result, long startNanos) {
+		TapJournal journal = mJournal;
+		if (journal == null) {
+			return;
+		}
+		long idm = (tag != null) ? FelicaLite.toIdmLong(tag.getId()) : 0;
+		long latency = (System.nanoTime() - startNanos) / 1000;
+		journal.append(idm, System.currentTimeMillis(), op, result, (int)Math.min(latency, Integer.MAX_VALUE));
+	}
+
+
+	/**
+	 * タップ結果を購読者へ配る(NFCのスレッドから呼んでもブロックしない)<br />
+	 * 購読者が{@link TapTracer#getSummary()}で今回のタップを見られるよう、
+	 * 先にタップのspanを閉じる(タップの最後に呼ぶこと)。
+	 *
+	 * @param tag			対象のTag
+	 * @param op			操作(TapJournal.OP_xxx)
+	 * @param result		結果(TapJournal.RESULT_xxx)
+	 * @param data			読んだデータ(null可)
+	 */
+	public static void publishSession(Tag tag, int op, int result, byte[] data) {
+		TapTracer.endTap();
+		if ((tag == null) || (mSessions.getSubscriberCount() == 0)) {
+			return;
+		}
+		mSessions.publish(new TagSessionPublisher.Session(tag, op, result, data));
+	}
+
+	/**
+	 * nfcActionXxx()/{@link #publishSession(Tag, int, int, byte[])}の配信元
+	 */
+	public static TagSessionPublisher getSessionPublisher() {
+		return mSessions;
+	}
+
+
+	/**
+	 * nfcActionXxx()で使っている再タップ判定の記録
+	 */
+	public static TapLedger getLedger() {
+		return mLedger;
+	}
+
+	/**
+	 * 再タップ判定をして、必要なら操作を実行する。<br />
+	 * 失敗した操作は記録せず(abort)、次のタップでやり直す。
+	 * フォーマットは何度実行しても同じ結果になるので、再開は最初からやり直しとしている。<br />
+	 * 完了済み・別スレッドで処理中のどちらも、再タップとして記録と配信を行う。
+	 *
+	 * @return		null:実行が必要 / null以外:実行しなくてよい(値は戻り値)
+	 */
+	private static Boolean checkDuplicate(Tag tag, int op, long start) {
+		long idm = FelicaLite.toIdmLong(tag.getId());
+		int begin = mLedger.begin(idm, op);
+		if ((begin != TapLedger.BEGIN_DONE) && (begin != TapLedger.BEGIN_BUSY)) {
+			return null;
+		}
+		Log.d(TAG, (begin == TapLedger.BEGIN_DONE) ? "duplicate tap" : "busy");
+		journal(tag, op, TapJournal.RESULT_DUPLICATE, start);
+		publishSession(tag, op, TapJournal.RESULT_DUPLICATE, null);
+		//処理中の場合、結果はまだ無い(処理中のスレッドが記録・配信する)
+		return Boolean.valueOf(begin == TapLedger.BEGIN_DONE);
+	}
+
+	private static void recordLedger(Tag tag, int op, boolean ret) {
+		long idm = FelicaLite.toIdmLong(tag.getId());
+		if (ret) {
+			mLedger.complete(idm, op, true, null);
+		} else {
+			mLedger.abort(idm, op, 0);
+		}
+	}
+
+
 	/**
 	 * IntentからTagを取得する
 	 * 
@@ -113,6 +343,15 @@ public class NfcFactory {
 	 * 						失敗した場合はnullを返す。
 	 */
 	public static Tag getTag(Intent intent) {
+		int span = TapTracer.begin(TapTracer.STAGE_GET_TAG);
+		try {
+			return getTagFromIntent(intent);
+		} finally {
+			TapTracer.end(span);
+		}
+	}
+
+	private static Tag getTagFromIntent(Intent intent) {
 		//チェック
 		String action = intent.getAction();
 		if (action == null) {
@@ -143,12 +382,20 @@ public class NfcFactory {
 	 * 						false:処理失敗
 	 */
 	public static boolean nfcActionNdefFormat(Intent intent) {
+		long start = System.nanoTime();
+
 		//Tag取得
 		Tag tag = getTag(intent);
 		if (tag == null) {
 			return false;
 		}
 
+		//再タップ
+		Boolean dup = checkDuplicate(tag, TapJournal.OP_NDEF_FORMAT, start);
+		if (dup != null) {
+			return dup;
+		}
+
 		/***********************************************
 		 * 以降に、自分がやりたい処理を書く
 		 ***********************************************/
@@ -168,7 +415,10 @@ public class NfcFactory {
 			Log.e(TAG, "お前など知らぬ");
 			ret = false;
 		}
-		
+
+		recordLedger(tag, TapJournal.OP_NDEF_FORMAT, ret);
+		journal(tag, TapJournal.OP_NDEF_FORMAT, ret ? TapJournal.RESULT_OK : TapJournal.RESULT_FAIL, start);
+		publishSession(tag, TapJournal.OP_NDEF_FORMAT, ret ? TapJournal.RESULT_OK : TapJournal.RESULT_FAIL, null);
 		return ret;
 	}
 	
@@ -222,6 +472,8 @@ public class NfcFactory {
 			}
 			
 			if(ret) {
+				//NDEFヘッダのNbrに使う
+				applyReadTuner(felica);
 				if (isNdef) {
 					ret = felica.format(mNdefEmpty);
 				} else {
@@ -256,12 +508,20 @@ public class NfcFactory {
 	 * 						false:処理失敗
 	 */
 	public static boolean nfcActionRawFormat(Intent intent) {
+		long start = System.nanoTime();
+
 		//Tag取得
 		Tag tag = getTag(intent);
 		if (tag == null) {
 			return false;
 		}
 
+		//再タップ
+		Boolean dup = checkDuplicate(tag, TapJournal.OP_RAW_FORMAT, start);
+		if (dup != null) {
+			return dup;
+		}
+
 		/***********************************************
 		 * 以降に、自分がやりたい処理を書く
 		 ***********************************************/
@@ -278,11 +538,75 @@ public class NfcFactory {
 			Log.e(TAG, "お前など知らぬ");
 			ret = false;
 		}
-		
+
+		recordLedger(tag, TapJournal.OP_RAW_FORMAT, ret);
+		journal(tag, TapJournal.OP_RAW_FORMAT, ret ? TapJournal.RESULT_OK : TapJournal.RESULT_FAIL, start);
+		publishSession(tag, TapJournal.OP_RAW_FORMAT, ret ? TapJournal.RESULT_OK : TapJournal.RESULT_FAIL, null);
 		return ret;
 	}
 	
 	
+	/**
+	 * カードの全メモリを読み込む(FeliCa Lite / MIFARE Ultralight系)<br />
+	 * 読み込んだイメージは{@link #getCardCache()}にも入れる。
+	 * 
+	 * @param tag		読み込むTag
+	 * @return			(!=null)読み込んだイメージ / (==null)失敗
+	 */
+	public static CardImage dumpCard(Tag tag) {
+		CardImage image = null;
+
+		if (NfcF.get(tag) != null) {
+			//こいつ、NFC-Fだ
+			image = felicaLiteDump(tag);
+		} else if (MifareUltralight.get(tag) != null) {
+			//こいつ、MIFARE Ultralightだ
+			image = UltralightReader.dump(tag);
+		} else {
+			Log.e(TAG, "お前など知らぬ");
+		}
+
+		if (image != null) {
+			mCardCache.put(image);
+		}
+		return image;
+	}
+
+	/**
+	 * {@link #dumpCard(Tag)}で読んだイメージのキャッシュ
+	 */
+	public static CardImageCache getCardCache() {
+		return mCardCache;
+	}
+
+	private static CardImage felicaLiteDump(Tag tag) {
+		CardImage image = null;
+		FelicaLite felica = null;
+		try {
+			felica = FelicaLite.get(tag);
+			if (felica == null) {
+				Log.e(TAG, "felicaLiteDump : no felica lite");
+				return null;
+			}
+			felica.connect();
+			applyReadTuner(felica);
+			image = felica.dump();
+		} catch (IOException e) {
+			Log.e(TAG, "felicaLiteDump : dump");
+		} catch (RemoteException e) {
+			Log.e(TAG, "felicaLiteDump : felica lite");
+		}
+		if (felica != null) {
+			try {
+				felica.close();
+			} catch (IOException e) {
+				Log.e(TAG, "felicaLiteDump : close");
+			}
+		}
+		return image;
+	}
+	
+	
 	/**
 	 * MIFARE Ultralightを空NDEFフォーマットする。<br />
 	 * OTPにNDEF値が入ると、AndroidでNdefFormatable#format()が失敗することがあるため、空NDEF TLVを作っている。
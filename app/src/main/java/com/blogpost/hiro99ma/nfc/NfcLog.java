@@ -0,0 +1,259 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import android.util.Log;
+
+
+/**
+ * @class	NfcLog
+ * @brief	NFCコマンドのエラーを構造化して記録する
+ *
+ * - イベント番号、ブロック番号、ステータスフラグ、付加情報(応答長など)を、
+ *   起動時に確保したリングバッファに記録する。記録時に文字列は作らない。<br>
+ * - 文字列(16進数含む)にするのは{@link #export(Writer)}/{@link #getRecent(int)}で読み出すときだけ。<br>
+ * - logcatへは固定文字列だけを出す。同じイベントは{@link #RATE_WINDOW_MS}の間に{@link #RATE_LIMIT}回までとし、
+ *   抑止した回数は次の窓の最初に出す。リングバッファには全部記録する。<br>
+ */
+public class NfcLog {
+	public static final int EV_POLLING_LENGTH = 0;
+	public static final int EV_POLLING_NFCID = 1;
+	public static final int EV_POLLING_RESPONSE = 2;
+	public static final int EV_WRITE_PARAM = 3;
+	public static final int EV_WRITE_LENGTH = 4;
+	public static final int EV_WRITE_NFCID = 5;
+	public static final int EV_WRITE_STATUS = 6;
+	public static final int EV_READ_LENGTH = 7;
+	public static final int EV_READ_NFCID = 8;
+	public static final int EV_READ_STATUS = 9;
+	public static final int EV_READS_LENGTH = 10;
+	public static final int EV_READS_NFCID = 11;
+	public static final int EV_READS_STATUS = 12;
+	public static final int EV_FAST_READ_LENGTH = 13;
+	public static final int EV_READ_PAGES_LENGTH = 14;
+	public static final int EV_READS_LIMIT = 15;
+	public static final int EV_NUM = 16;
+
+	//ブロック番号、ステータスなどが無い場合
+	//(ステータスフラグは0x00～0xffで渡すこと。byteのまま渡すと0xffがNONEになる)
+	public static final int NONE = -1;
+
+	public static final int RATE_WINDOW_MS = 1000;
+	public static final int RATE_LIMIT = 4;
+
+	private static final String[] EV_TAG = new String[] {
+		"FelicaLite", "FelicaLite", "FelicaLite",
+		"FelicaLite", "FelicaLite", "FelicaLite", "FelicaLite",
+		"FelicaLite", "FelicaLite", "FelicaLite",
+		"FelicaLite", "FelicaLite", "FelicaLite",
+		"UltralightReader", "UltralightReader",
+		"FelicaLite",
+	};
+	private static final String[] EV_MESSAGE = new String[] {
+		"polling : length", "polling : nfcid", "polling : response code",
+		"writeBlock : param", "writeBlock : length", "writeBlock : nfcid", "writeBlock : status",
+		"readBlock : length", "readBlock : nfcid", "readBlock : status",
+		"readBlocks : length", "readBlocks : nfcid", "readBlocks : status",
+		"fastRead : length", "readPages : length",
+		"readBlocks : blocks limit",
+	};
+
+	private static final int CAPACITY = 512;		//2の累乗
+
+	private static final long[] mTime = new long[CAPACITY];
+	private static final int[] mEvent = new int[CAPACITY];
+	private static final int[] mBlock = new int[CAPACITY];
+	private static final int[] mStatus = new int[CAPACITY];		//上位8bit:ステータスフラグ1, 下位8bit:ステータスフラグ2
+	private static final int[] mDetail = new int[CAPACITY];
+	private static long mNext = 0;
+
+	//logcatの流量制限(イベントごと)
+	private static final long[] mWindowStart = new long[EV_NUM];
+	private static final int[] mWindowCount = new int[EV_NUM];
+	private static final int[] mSuppressed = new int[EV_NUM];
+
+
+	private NfcLog() {
+		;
+	}
+
+	/**
+	 * エラーを記録する
+	 *
+	 * @param event		[in]EV_xxx
+	 * @param block		[in]ブロック番号 / ページ番号(無ければNONE)
+	 * @param status1	[in]ステータスフラグ1(0x00～0xff。無ければNONE)
+	 * @param status2	[in]ステータスフラグ2(0x00～0xff。無ければNONE)
+	 * @param detail	[in]付加情報(応答長など。無ければNONE)
+	 */
+	public static void e(int event, int block, int status1, int status2, int detail) {
+		log(false, event, block, status1, status2, detail);
+	}
+
+	public static void e(int event, int block) {
+		log(false, event, block, NONE, NONE, NONE);
+	}
+
+	/**
+	 * 警告を記録する(logcatへはLog.w)
+	 */
+	public static void w(int event, int block, int status1, int status2, int detail) {
+		log(true, event, block, status1, status2, detail);
+	}
+
+	private static void log(boolean warn, int event, int block, int status1, int status2, int detail) {
+		long now = System.currentTimeMillis();
+		int suppressed;
+		boolean emit;
+		synchronized (NfcLog.class) {
+			int slot = (int)(mNext & (CAPACITY - 1));
+			mNext++;
+			mTime[slot] = now;
+			mEvent[slot] = event;
+			mBlock[slot] = block;
+			mStatus[slot] = (status1 == NONE) ? NONE : (((status1 & 0xff) << 8) | (status2 & 0xff));
+			mDetail[slot] = detail;
+
+			suppressed = 0;
+			if (now - mWindowStart[event] >= RATE_WINDOW_MS) {
+				suppressed = mSuppressed[event];
+				mWindowStart[event] = now;
+				mWindowCount[event] = 0;
+				mSuppressed[event] = 0;
+			}
+			emit = (mWindowCount[event] < RATE_LIMIT);
+			if (emit) {
+				mWindowCount[event]++;
+			} else {
+				mSuppressed[event]++;
+			}
+		}
+		if (suppressed > 0) {
+			Log.w(EV_TAG[event], EV_MESSAGE[event] + " : suppressed " + suppressed);
+		}
+		if (emit) {
+			if (warn) {
+				Log.w(EV_TAG[event], EV_MESSAGE[event]);
+			} else {
+				Log.e(EV_TAG[event], EV_MESSAGE[event]);
+			}
+		}
+	}
+
+	/**
+	 * 記録を消す
+	 */
+	public static synchronized void clear() {
+		mNext = 0;
+		for (int i = 0; i < EV_NUM; i++) {
+			mWindowStart[i] = 0;
+			mWindowCount[i] = 0;
+			mSuppressed[i] = 0;
+		}
+	}
+
+	/**
+	 * @return		今までに記録した数(リングバッファから消えた分も含む)
+	 */
+	public static synchronized long getCount() {
+		return mNext;
+	}
+
+	/**
+	 * 新しい方から最大num件を文字列にする
+	 *
+	 * @param num		[in]件数
+	 * @return			1行1件
+	 */
+	public static String getRecent(int num) {
+		StringBuilder sb = new StringBuilder();
+		synchronized (NfcLog.class) {
+			long first = Math.max(mNext - Math.min(num, CAPACITY), 0);
+			for (long seq = mNext - 1; seq >= first; seq--) {
+				format(sb, (int)(seq & (CAPACITY - 1)));
+				sb.append('\n');
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * 記録している全件をCSVで書き出す
+	 *
+	 * @param out		[in]出力先
+	 * @throws IOException
+	 */
+	public static void export(Writer out) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("time_ms,tag,event,block,status,detail\n");
+		synchronized (NfcLog.class) {
+			long first = (mNext > CAPACITY) ? mNext - CAPACITY : 0;
+			for (long seq = first; seq < mNext; seq++) {
+				int slot = (int)(seq & (CAPACITY - 1));
+				sb.append(mTime[slot]).append(',');
+				sb.append(EV_TAG[mEvent[slot]]).append(',');
+				sb.append(EV_MESSAGE[mEvent[slot]]).append(',');
+				if (mBlock[slot] != NONE) {
+					appendHex(sb, mBlock[slot]);
+				}
+				sb.append(',');
+				if (mStatus[slot] != NONE) {
+					appendHex(sb, mStatus[slot] >> 8);
+					appendHex(sb, mStatus[slot]);
+				}
+				sb.append(',');
+				if (mDetail[slot] != NONE) {
+					sb.append(mDetail[slot]);
+				}
+				sb.append('\n');
+			}
+		}
+		out.write(sb.toString());
+		out.flush();
+	}
+
+	private static void format(StringBuilder sb, int slot) {
+		sb.append(EV_TAG[mEvent[slot]]).append(' ').append(EV_MESSAGE[mEvent[slot]]);
+		if (mBlock[slot] != NONE) {
+			sb.append(" block=");
+			appendHex(sb, mBlock[slot]);
+		}
+		if (mStatus[slot] != NONE) {
+			sb.append(" status=");
+			appendHex(sb, mStatus[slot] >> 8);
+			sb.append('-');
+			appendHex(sb, mStatus[slot]);
+		}
+		if (mDetail[slot] != NONE) {
+			sb.append(" detail=").append(mDetail[slot]);
+		}
+	}
+
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * 下位8bitを16進数2桁で追加する
+	 */
+	public static StringBuilder appendHex(StringBuilder sb, int b) {
+		return sb.append(HEX[(b >> 4) & 0x0f]).append(HEX[b & 0x0f]);
+	}
+
+	/**
+	 * "xx-xx-...-xx-"の形にする
+	 *
+	 * @param data		[in]データ(nullなら空文字列)
+	 * @return			16進数文字列
+	 */
+	public static String toHex(byte[] data) {
+		if (data == null) {
+			return "";
+		}
+		StringBuilder sb = new StringBuilder(data.length * 3);
+		for (byte b : data) {
+			appendHex(sb, b).append('-');
+		}
+		return sb.toString();
+	}
+}
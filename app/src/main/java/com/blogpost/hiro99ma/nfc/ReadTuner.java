@@ -0,0 +1,152 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.io.IOException;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.nfc.TagLostException;
+import android.util.Log;
+
+
+/**
+ * @class	ReadTuner
+ * @brief	端末とカードの組み合わせごとに、1回で読むブロック数を決める
+ *
+ * - プロファイルはPMm({@link FelicaLite#getManufacturer()})と
+ *   {@link FelicaLite#getMaxTransceiveLength()}の組み合わせ。<br>
+ * - {@link #tune(FelicaLite)}で、ブロック数ごとに読込み時間と失敗率を実測し、
+ *   1ブロックあたりの時間が最も短いものを選ぶ。<br>
+ * - 結果はSharedPreferencesに保存し、次回からは{@link #apply(FelicaLite)}で設定するだけにする。<br>
+ * - 計測はRFのやりとりが多い(最大{@link FelicaLite#NBR_FELICA_LITE}×3回)ので、
+ *   通常のタップではなく、キャリブレーションとして明示的に行うこと。<br>
+ * - 決めた値は端末側の読込み計画にだけ使い、カード(T3TのNbr)には書かない。<br>
+ */
+public class ReadTuner {
+	private static final String TAG = "ReadTuner";
+	private static final String PREF_NAME = "read_tuner";
+
+	//1つのブロック数あたりの試行回数
+	private static final int TRIALS = 3;
+	//失敗1回あたり、1ブロックの時間にかける重み
+	private static final double FAIL_PENALTY = 4.0;
+
+	private static final int[] TUNE_BLOCKS = new int[] {
+		FelicaLite.PAD0, FelicaLite.PAD1, FelicaLite.PAD2, FelicaLite.PAD3,
+		FelicaLite.PAD4, FelicaLite.PAD5, FelicaLite.PAD6, FelicaLite.PAD7,
+		FelicaLite.PAD8, FelicaLite.PAD9, FelicaLite.PAD10, FelicaLite.PAD11,
+		FelicaLite.PAD12, FelicaLite.PAD13, FelicaLite.REG,
+	};
+
+	private final SharedPreferences mPref;
+
+
+	public ReadTuner(Context context) {
+		mPref = context.getApplicationContext().getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+	}
+
+	/**
+	 * プロファイル名
+	 */
+	public static String profile(FelicaLite felica) {
+		StringBuilder sb = new StringBuilder();
+		byte[] pmm = felica.getManufacturer();
+		if (pmm != null) {
+			for (byte b : pmm) {
+				sb.append(Character.forDigit((b >> 4) & 0x0f, 16));
+				sb.append(Character.forDigit(b & 0x0f, 16));
+			}
+		}
+		sb.append('_');
+		sb.append(felica.getMaxTransceiveLength());
+		return sb.toString();
+	}
+
+	/**
+	 * 保存している値を設定する
+	 *
+	 * @param felica	[in]設定対象
+	 * @return			true:設定した / false:未計測のプロファイル
+	 */
+	public boolean apply(FelicaLite felica) {
+		int best = mPref.getInt(profile(felica), 0);
+		if (best <= 0) {
+			return false;
+		}
+		felica.setMaxReadBlocks(best);
+		return true;
+	}
+
+	/**
+	 * 実測して、最適なブロック数を設定・保存する
+	 * <br>
+	 * - {@link FelicaLite#connect()}を呼び出しておくこと。<br>
+	 * - 途中でタグが離れた場合は何も保存しない。<br>
+	 *
+	 * @param felica	[in]計測対象
+	 * @return			(>0)決めたブロック数 / (<=0)計測できなかった
+	 * @throws TagLostException
+	 */
+	public int tune(FelicaLite felica) throws TagLostException {
+		int limit = (felica.getMaxTransceiveLength() - 13) / FelicaLite.SIZE_BLOCK;
+		//FeliCa Liteはカードの仕様上4ブロックまでなので、それより多くは試さない
+		if (limit > FelicaLite.NBR_FELICA_LITE) {
+			limit = FelicaLite.NBR_FELICA_LITE;
+		}
+		int org = felica.getMaxReadBlocks();
+
+		int best = 0;
+		double bestScore = Double.MAX_VALUE;
+		for (int num = 1; num <= limit; num++) {
+			felica.setMaxReadBlocks(num);
+			int[] list = new int[num];
+			System.arraycopy(TUNE_BLOCKS, 0, list, 0, num);
+
+			int fail = 0;
+			long elapsed = 0;
+			for (int trial = 0; trial < TRIALS; trial++) {
+				long start = System.nanoTime();
+				byte[] rd = null;
+				try {
+					rd = felica.readBlock(list);
+				} catch (TagLostException e) {
+					felica.setMaxReadBlocks(org);
+					throw e;
+				} catch (IOException e) {
+					Log.d(TAG, "tune : ioexception " + num);
+				}
+				elapsed += System.nanoTime() - start;
+				if (rd == null) {
+					fail++;
+				}
+			}
+
+			if (fail == TRIALS) {
+				//このブロック数は読めない。これより多くても無理。
+				Log.d(TAG, "tune : not supported " + num);
+				break;
+			}
+			double perBlock = (double)elapsed / TRIALS / num;
+			double score = perBlock * (1.0 + FAIL_PENALTY * fail / TRIALS);
+			Log.d(TAG, "tune : " + num + "blocks " + (long)perBlock + "ns/block fail=" + fail);
+			if (score < bestScore) {
+				bestScore = score;
+				best = num;
+			}
+		}
+
+		if (best > 0) {
+			felica.setMaxReadBlocks(best);
+			mPref.edit().putInt(profile(felica), best).apply();
+		} else {
+			felica.setMaxReadBlocks(org);
+		}
+		return best;
+	}
+
+	/**
+	 * 保存している値を消す
+	 */
+	public void clear() {
+		mPref.edit().clear().apply();
+	}
+}
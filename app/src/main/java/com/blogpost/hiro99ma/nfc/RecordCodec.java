@@ -0,0 +1,477 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import android.util.Log;
+
+
+/**
+ * @class	RecordCodec
+ * @brief	FeliCa Liteのユーザ領域(PAD0～PAD13)に載せるアプリデータの符号化
+ *
+ * - フィールドはビット単位で詰める(varint、zigzag、bit field、時刻の差分)。<br>
+ * - ユーザ領域の先頭1byteはフラグ、続くvarintがペイロード長。<br>
+ * - ゼロの連続が多い場合はランレングスで圧縮する(短くなる場合のみ)。<br>
+ * - 書込みは前回のイメージと比べ、変化したブロックだけ{@link FelicaLite#writeBlock(int, byte[])}する。<br>
+ * - PAD0から使うので、{@link FelicaLite#rawFormat()}したカード専用。
+ *   NDEFフォーマットしたカード(PAD0がT3Tの属性情報)には{@link #write(FelicaLite, byte[], byte[])}しない。<br>
+ */
+public class RecordCodec {
+	public static final int BLOCK_NUM = FelicaLite.PAD13 - FelicaLite.PAD0 + 1;
+	public static final int USER_AREA_SIZE = BLOCK_NUM * FelicaLite.SIZE_BLOCK;	//224byte
+
+	private static final String TAG = "RecordCodec";
+
+	private static final int FLAG_VERSION = 0x01;
+	private static final int FLAG_COMPRESSED = 0x80;
+
+	//MCのSYS_OP(0x01:NDEF)
+	private static final int MC_SYS_OP = 3;
+	private static final int SYS_OP_NDEF = 0x01;
+
+
+	private RecordCodec() {
+		;
+	}
+
+
+	/**
+	 * @class	Encoder
+	 * @brief	ビット単位の書込み
+	 *
+	 * バッファは生成時に確保し、{@link #reset(long)}で使い回せる。
+	 */
+	public static class Encoder {
+		private final byte[] mBuf = new byte[USER_AREA_SIZE];
+		private int mBitPos;
+		private long mLastTime;
+		private boolean mOverflow;
+
+		/**
+		 * @param baseTime		[in]最初の{@link #putTimestamp(long)}の差分の基準
+		 */
+		public Encoder(long baseTime) {
+			reset(baseTime);
+		}
+
+		public void reset(long baseTime) {
+			Arrays.fill(mBuf, (byte)0);
+			mBitPos = 0;
+			mLastTime = baseTime;
+			mOverflow = false;
+		}
+
+		/**
+		 * 下位nbitsを書き込む(MSB first)
+		 *
+		 * @param value		[in]値
+		 * @param nbits		[in]ビット数(1～64)
+		 */
+		public Encoder putBits(long value, int nbits) {
+			if (mBitPos + nbits > USER_AREA_SIZE * 8) {
+				mOverflow = true;
+				return this;
+			}
+			for (int i = nbits - 1; i >= 0; i--) {
+				if (((value >>> i) & 1) != 0) {
+					mBuf[mBitPos >> 3] |= (byte)(0x80 >> (mBitPos & 7));
+				}
+				mBitPos++;
+			}
+			return this;
+		}
+
+		public Encoder putBool(boolean value) {
+			return putBits(value ? 1 : 0, 1);
+		}
+
+		/**
+		 * 符号なしvarint(7bitずつ、継続ビット付き)
+		 */
+		public Encoder putVarint(long value) {
+			while ((value & ~0x7fL) != 0) {
+				putBits((value & 0x7f) | 0x80, 8);
+				value >>>= 7;
+			}
+			return putBits(value, 8);
+		}
+
+		/**
+		 * 符号ありvarint(zigzag)
+		 */
+		public Encoder putSignedVarint(long value) {
+			return putVarint((value << 1) ^ (value >> 63));
+		}
+
+		/**
+		 * 時刻。直前の時刻(最初は基準時刻)との差分を書き込む。
+		 */
+		public Encoder putTimestamp(long time) {
+			putSignedVarint(time - mLastTime);
+			mLastTime = time;
+			return this;
+		}
+
+		public Encoder putBytes(byte[] data, int offset, int length) {
+			for (int i = 0; i < length; i++) {
+				putBits(data[offset + i] & 0xff, 8);
+			}
+			return this;
+		}
+
+		/**
+		 * @return	書き込んだバイト数(端数ビットは切り上げ)
+		 */
+		public int length() {
+			return (mBitPos + 7) >> 3;
+		}
+
+		/**
+		 * @return	true:ユーザ領域に収まらなかった
+		 */
+		public boolean isOverflow() {
+			return mOverflow;
+		}
+	}
+
+
+	/**
+	 * @class	Decoder
+	 * @brief	{@link Encoder}で書いたデータの読込み
+	 */
+	public static class Decoder {
+		private final byte[] mBuf;
+		private final int mLength;
+		private int mBitPos;
+		private long mLastTime;
+		private boolean mUnderflow;
+
+		/**
+		 * @param data			[in]ペイロード({@link RecordCodec#decodeUserArea(byte[])}の戻り値)
+		 * @param baseTime		[in]{@link Encoder#Encoder(long)}と同じ基準時刻
+		 */
+		public Decoder(byte[] data, long baseTime) {
+			mBuf = data;
+			mLength = data.length;
+			mBitPos = 0;
+			mLastTime = baseTime;
+			mUnderflow = false;
+		}
+
+		public long getBits(int nbits) {
+			if (mBitPos + nbits > mLength * 8) {
+				mUnderflow = true;
+				return 0;
+			}
+			long value = 0;
+			for (int i = 0; i < nbits; i++) {
+				value = (value << 1) | ((mBuf[mBitPos >> 3] >> (7 - (mBitPos & 7))) & 1);
+				mBitPos++;
+			}
+			return value;
+		}
+
+		public boolean getBool() {
+			return getBits(1) != 0;
+		}
+
+		public long getVarint() {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = (int)getBits(8);
+				value |= (long)(b & 0x7f) << shift;
+				if ((b & 0x80) == 0) {
+					break;
+				}
+			}
+			return value;
+		}
+
+		public long getSignedVarint() {
+			long raw = getVarint();
+			return (raw >>> 1) ^ -(raw & 1);
+		}
+
+		public long getTimestamp() {
+			mLastTime += getSignedVarint();
+			return mLastTime;
+		}
+
+		public void getBytes(byte[] dst, int offset, int length) {
+			for (int i = 0; i < length; i++) {
+				dst[offset + i] = (byte)getBits(8);
+			}
+		}
+
+		/**
+		 * @return	true:データの終わりを越えて読もうとした
+		 */
+		public boolean isUnderflow() {
+			return mUnderflow;
+		}
+	}
+
+
+	/**
+	 * ユーザ領域のイメージ(224byte)を作る
+	 *
+	 * @param enc			[in]書込み済みのEncoder
+	 * @param compress		[in]true:圧縮を試す(短くなった場合のみ採用)
+	 * @return				(!=null)イメージ / (==null)収まらない
+	 */
+	public static byte[] encodeUserArea(Encoder enc, boolean compress) {
+		if (enc.isOverflow()) {
+			Log.e(TAG, "encodeUserArea : overflow");
+			return null;
+		}
+
+		byte[] payload = enc.mBuf;
+		int len = enc.length();
+		int flags = FLAG_VERSION;
+		if (compress) {
+			byte[] packed = new byte[USER_AREA_SIZE];
+			int plen = packZero(payload, len, packed);
+			if ((plen >= 0) && (plen < len)) {
+				payload = packed;
+				len = plen;
+				flags |= FLAG_COMPRESSED;
+			}
+		}
+
+		byte[] image = new byte[USER_AREA_SIZE];
+		image[0] = (byte)flags;
+		int pos = 1 + writeVarint(image, 1, len);
+		if (pos + len > USER_AREA_SIZE) {
+			Log.e(TAG, "encodeUserArea : too large");
+			return null;
+		}
+		System.arraycopy(payload, 0, image, pos, len);
+		return image;
+	}
+
+	/**
+	 * ユーザ領域のイメージからペイロードを取り出す
+	 *
+	 * @param image			[in]ユーザ領域のイメージ
+	 * @return				(!=null)ペイロード / (==null)フォーマット不正
+	 */
+	public static byte[] decodeUserArea(byte[] image) {
+		if ((image == null) || (image.length < 2) || ((image[0] & 0x7f) != FLAG_VERSION)) {
+			Log.e(TAG, "decodeUserArea : format");
+			return null;
+		}
+
+		int len = 0;
+		int pos = 1;
+		for (int shift = 0; ; shift += 7) {
+			if ((pos >= image.length) || (shift > 28)) {
+				Log.e(TAG, "decodeUserArea : length");
+				return null;
+			}
+			int b = image[pos++] & 0xff;
+			len |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				break;
+			}
+		}
+		if (pos + len > image.length) {
+			Log.e(TAG, "decodeUserArea : length");
+			return null;
+		}
+
+		if ((image[0] & FLAG_COMPRESSED) != 0) {
+			byte[] out = new byte[USER_AREA_SIZE];
+			int olen = unpackZero(image, pos, len, out);
+			if (olen < 0) {
+				Log.e(TAG, "decodeUserArea : compressed data");
+				return null;
+			}
+			return Arrays.copyOf(out, olen);
+		}
+		return Arrays.copyOfRange(image, pos, pos + len);
+	}
+
+	/**
+	 * イメージが使っているブロック数(ヘッダを含む)
+	 */
+	public static int usedBlocks(byte[] image) {
+		for (int blk = BLOCK_NUM - 1; blk >= 0; blk--) {
+			for (int i = 0; i < FelicaLite.SIZE_BLOCK; i++) {
+				if (image[blk * FelicaLite.SIZE_BLOCK + i] != 0) {
+					return blk + 1;
+				}
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * 書込みが必要なブロック番号を返す
+	 *
+	 * @param oldImage		[in]カードの現在のイメージ(nullなら全ブロック書き込む)
+	 * @param newImage		[in]書き込むイメージ
+	 * @return				変化したブロック番号(PAD0～PAD13)
+	 */
+	public static int[] changedBlocks(byte[] oldImage, byte[] newImage) {
+		int[] tmp = new int[BLOCK_NUM];
+		int num = 0;
+		for (int blk = 0; blk < BLOCK_NUM; blk++) {
+			int off = blk * FelicaLite.SIZE_BLOCK;
+			boolean diff = (oldImage == null);
+			for (int i = 0; !diff && (i < FelicaLite.SIZE_BLOCK); i++) {
+				diff = (oldImage[off + i] != newImage[off + i]);
+			}
+			if (diff) {
+				tmp[num++] = FelicaLite.PAD0 + blk;
+			}
+		}
+		return Arrays.copyOf(tmp, num);
+	}
+
+	/**
+	 * 変化したブロックだけ書き込む
+	 * <br>
+	 * - {@link FelicaLite#connect()}を呼び出しておくこと。<br>
+	 * - NDEFフォーマットしたカード(MCのSYS_OPが0x01)には書き込まない(NDEFが壊れるため)。<br>
+	 *
+	 * @param felica		[in]書込み対象
+	 * @param oldImage		[in]カードの現在のイメージ(nullなら全ブロック書き込む)
+	 * @param newImage		[in]書き込むイメージ
+	 * @return				(>=0)書き込んだブロック数 / (<0)失敗またはNDEFのカード
+	 * @throws IOException
+	 */
+	public static int write(FelicaLite felica, byte[] oldImage, byte[] newImage) throws IOException {
+		byte[] mc = felica.readBlock(FelicaLite.MC);
+		if (mc == null) {
+			Log.e(TAG, "write : read MC");
+			return -1;
+		}
+		if (mc[MC_SYS_OP] == SYS_OP_NDEF) {
+			Log.e(TAG, "write : NDEF card");
+			return -1;
+		}
+
+		int[] blocks = changedBlocks(oldImage, newImage);
+		byte[] buf = new byte[FelicaLite.SIZE_BLOCK];
+		for (int blk : blocks) {
+			System.arraycopy(newImage, (blk - FelicaLite.PAD0) * FelicaLite.SIZE_BLOCK, buf, 0, FelicaLite.SIZE_BLOCK);
+			if (!felica.writeBlock(blk, buf)) {
+				Log.e(TAG, "write : writeBlock");
+				return -1;
+			}
+		}
+		return blocks.length;
+	}
+
+	/**
+	 * ユーザ領域のイメージを読み込む。<br>
+	 * 先頭ブロックのペイロード長から、必要なブロックだけを読む。
+	 * <br>
+	 * - {@link FelicaLite#connect()}を呼び出しておくこと。<br>
+	 *
+	 * @param felica		[in]読込み対象
+	 * @return				(!=null)イメージ(224byte。読まなかった部分は0) / (==null)失敗
+	 * @throws IOException
+	 */
+	public static byte[] read(FelicaLite felica) throws IOException {
+		byte[] image = new byte[USER_AREA_SIZE];
+		byte[] head = felica.readBlock(FelicaLite.PAD0);
+		if (head == null) {
+			Log.e(TAG, "read : header");
+			return null;
+		}
+		System.arraycopy(head, 0, image, 0, FelicaLite.SIZE_BLOCK);
+
+		//ヘッダ(フラグ+varint)とペイロードが収まるブロック数
+		int len = 0;
+		int pos = 1;
+		for (int shift = 0; (pos < FelicaLite.SIZE_BLOCK) && (shift <= 28); shift += 7) {
+			int b = head[pos++] & 0xff;
+			len |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				break;
+			}
+		}
+		int blks = (pos + len + FelicaLite.SIZE_BLOCK - 1) / FelicaLite.SIZE_BLOCK;
+		if (blks > BLOCK_NUM) {
+			blks = BLOCK_NUM;
+		}
+
+		if (blks > 1) {
+			int[] list = new int[blks - 1];
+			for (int i = 0; i < list.length; i++) {
+				list[i] = FelicaLite.PAD1 + i;
+			}
+			byte[] rd = felica.readBlocks(list);
+			if (rd == null) {
+				Log.e(TAG, "read : readBlocks");
+				return null;
+			}
+			System.arraycopy(rd, 0, image, FelicaLite.SIZE_BLOCK, rd.length);
+		}
+		return image;
+	}
+
+
+	private static int writeVarint(byte[] dst, int pos, int value) {
+		int start = pos;
+		while ((value & ~0x7f) != 0) {
+			dst[pos++] = (byte)((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		dst[pos++] = (byte)value;
+		return pos - start;
+	}
+
+	/**
+	 * ゼロのランレングス圧縮。0x00の後に連続数(1～255)を置く。
+	 *
+	 * @return		(>=0)圧縮後の長さ / (<0)outに収まらない
+	 */
+	private static int packZero(byte[] in, int len, byte[] out) {
+		int opos = 0;
+		int ipos = 0;
+		while (ipos < len) {
+			if (opos + 2 > out.length) {
+				return -1;
+			}
+			if (in[ipos] != 0) {
+				out[opos++] = in[ipos++];
+			} else {
+				int run = 0;
+				while ((ipos < len) && (in[ipos] == 0) && (run < 255)) {
+					ipos++;
+					run++;
+				}
+				out[opos++] = 0;
+				out[opos++] = (byte)run;
+			}
+		}
+		return opos;
+	}
+
+	private static int unpackZero(byte[] in, int pos, int len, byte[] out) {
+		int opos = 0;
+		int end = pos + len;
+		while (pos < end) {
+			byte b = in[pos++];
+			if (b != 0) {
+				if (opos >= out.length) {
+					return -1;
+				}
+				out[opos++] = b;
+			} else {
+				if (pos >= end) {
+					return -1;
+				}
+				int run = in[pos++] & 0xff;
+				if (opos + run > out.length) {
+					return -1;
+				}
+				opos += run;		//outは0で初期化済み
+			}
+		}
+		return opos;
+	}
+}
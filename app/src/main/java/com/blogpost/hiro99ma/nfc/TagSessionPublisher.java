@@ -0,0 +1,320 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.nfc.Tag;
+import android.util.Log;
+
+
+/**
+ * @class	TagSessionPublisher
+ * @brief	タップ(タグセッション)の結果を、背圧付きで複数の購読者へ配る
+ *
+ * - Reactive Streamsと同じ考え方(購読者がrequest(n)した分だけonNext()する)。
+ *   java.util.concurrent.FlowはAPI 30からなので、同じ形のインターフェースをここで持つ。<br>
+ * - {@link #publish(Session)}はNFCのスレッドから呼ばれる前提で、ブロックしない。
+ *   購読者ごとに上限付きのキューを持ち、溢れたときは{@link Overflow}に従って捨てる/まとめる。<br>
+ * - onNext()は購読時に指定したExecutorで、購読者ごとに1つずつ順番に呼ばれる。<br>
+ */
+public class TagSessionPublisher {
+	private static final String TAG = "TagSessionPublisher";
+
+	/**
+	 * キューが溢れたときの動作
+	 */
+	public enum Overflow {
+		/** 新しいセッションを捨てる */
+		DROP_NEWEST,
+		/** 一番古いセッションを捨てる */
+		DROP_OLDEST,
+		/** 同じIDmのセッションがキューにあれば置き換える。なければDROP_OLDEST */
+		COALESCE,
+	}
+
+	/**
+	 * 1回のタップの結果
+	 */
+	public static class Session {
+		private final Tag mTag;
+		private final long mIdm;
+		private final int mOp;
+		private final int mResult;
+		private final byte[] mData;
+		private final long mTime;
+
+		/**
+		 * @param tag		[in]タグ
+		 * @param op		[in]TapJournal.OP_xxx
+		 * @param result	[in]TapJournal.RESULT_xxx
+		 * @param data		[in]読んだデータ(null可)
+		 */
+		public Session(Tag tag, int op, int result, byte[] data) {
+			mTag = tag;
+			mIdm = FelicaLite.toIdmLong(tag.getId());
+			mOp = op;
+			mResult = result;
+			mData = data;
+			mTime = System.currentTimeMillis();
+		}
+
+		public Tag getTag() {
+			return mTag;
+		}
+
+		public long getIdm() {
+			return mIdm;
+		}
+
+		public int getOp() {
+			return mOp;
+		}
+
+		public int getResult() {
+			return mResult;
+		}
+
+		public byte[] getData() {
+			return mData;
+		}
+
+		/**
+		 * @return		タップした時刻[ms]
+		 */
+		public long getTime() {
+			return mTime;
+		}
+	}
+
+	public interface Subscriber {
+		void onSubscribe(Subscription subscription);
+		void onNext(Session session);
+		void onComplete();
+	}
+
+	public interface Subscription {
+		/**
+		 * @param n		[in]追加で受け取れる数(1以上)
+		 */
+		void request(long n);
+		void cancel();
+		/**
+		 * @return		溢れて捨てた(まとめた)数
+		 */
+		long getDropped();
+	}
+
+	private final CopyOnWriteArrayList<Sink> mSinks = new CopyOnWriteArrayList<Sink>();
+	private volatile boolean mClosed = false;
+
+
+	/**
+	 * 購読する
+	 *
+	 * @param subscriber	[in]購読者
+	 * @param executor		[in]onSubscribe/onNext/onCompleteを呼ぶExecutor
+	 * @param capacity		[in]キューの上限
+	 * @param overflow		[in]溢れたときの動作
+	 * @return				購読
+	 */
+	public Subscription subscribe(Subscriber subscriber, Executor executor, int capacity, Overflow overflow) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity : " + capacity);
+		}
+		Sink sink = new Sink(subscriber, executor, capacity, overflow);
+		if (mClosed) {
+			sink.mDone = true;
+		} else {
+			mSinks.add(sink);
+		}
+		sink.signal();
+		return sink;
+	}
+
+	/**
+	 * セッションを配る(ブロックしない)
+	 *
+	 * @param session	[in]タップの結果
+	 */
+	public void publish(Session session) {
+		if (mClosed) {
+			return;
+		}
+		for (Sink sink : mSinks) {
+			sink.offer(session);
+		}
+	}
+
+	/**
+	 * 全購読者へ、キューに残っている分を配り終えたらonComplete()する
+	 */
+	public void close() {
+		mClosed = true;
+		for (Sink sink : mSinks) {
+			sink.mDone = true;
+			sink.signal();
+		}
+		mSinks.clear();
+	}
+
+	public int getSubscriberCount() {
+		return mSinks.size();
+	}
+
+
+	private class Sink implements Subscription, Runnable {
+		private final Subscriber mSubscriber;
+		private final Executor mExecutor;
+		private final int mCapacity;
+		private final Overflow mOverflow;
+
+		//mQueueはthisでロックする
+		private final ArrayDeque<Session> mQueue;
+		private final AtomicLong mDemand = new AtomicLong();
+		private final AtomicLong mDropped = new AtomicLong();
+		//drainの多重実行防止(0:停止中)
+		private final AtomicInteger mWip = new AtomicInteger();
+		private boolean mSubscribed = false;		//drainスレッドからしか触らない
+		private volatile boolean mDone = false;
+		private volatile boolean mCancelled = false;
+
+		Sink(Subscriber subscriber, Executor executor, int capacity, Overflow overflow) {
+			mSubscriber = subscriber;
+			mExecutor = executor;
+			mCapacity = capacity;
+			mOverflow = overflow;
+			mQueue = new ArrayDeque<Session>(capacity);
+		}
+
+		void offer(Session session) {
+			if (mCancelled) {
+				return;
+			}
+			synchronized (this) {
+				if (mQueue.size() >= mCapacity) {
+					mDropped.incrementAndGet();
+					switch (mOverflow) {
+					case DROP_NEWEST:
+						return;
+					case COALESCE:
+						if (replace(session)) {
+							return;
+						}
+						mQueue.pollFirst();
+						break;
+					case DROP_OLDEST:
+					default:
+						mQueue.pollFirst();
+						break;
+					}
+				} else if ((mOverflow == Overflow.COALESCE) && replace(session)) {
+					mDropped.incrementAndGet();
+					return;
+				}
+				mQueue.offerLast(session);
+			}
+			signal();
+		}
+
+		/**
+		 * キューにある同じIDmのセッションを置き換える(順番は古い方の位置のまま)
+		 */
+		private boolean replace(Session session) {
+			if (mQueue.isEmpty()) {
+				return false;
+			}
+			//ArrayDequeは位置指定で置き換えられないので、入れ直す
+			boolean found = false;
+			int num = mQueue.size();
+			for (int i = 0; i < num; i++) {
+				Session s = mQueue.pollFirst();
+				if (!found && (s.getIdm() == session.getIdm())) {
+					s = session;
+					found = true;
+				}
+				mQueue.offerLast(s);
+			}
+			return found;
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				Log.e(TAG, "request : " + n);
+				return;
+			}
+			long cur;
+			long next;
+			do {
+				cur = mDemand.get();
+				next = cur + n;
+				if (next < 0) {
+					//Long.MAX_VALUEで頭打ち(無制限)
+					next = Long.MAX_VALUE;
+				}
+			} while (!mDemand.compareAndSet(cur, next));
+			signal();
+		}
+
+		@Override
+		public void cancel() {
+			mCancelled = true;
+			mSinks.remove(this);
+			synchronized (this) {
+				mQueue.clear();
+			}
+		}
+
+		@Override
+		public long getDropped() {
+			return mDropped.get();
+		}
+
+		void signal() {
+			if (mWip.getAndIncrement() == 0) {
+				mExecutor.execute(this);
+			}
+		}
+
+		/**
+		 * drain(Executorのスレッド)
+		 */
+		@Override
+		public void run() {
+			int missed = 1;
+			do {
+				if (!mSubscribed) {
+					mSubscribed = true;
+					mSubscriber.onSubscribe(this);
+				}
+				while (!mCancelled && (mDemand.get() > 0)) {
+					Session s;
+					synchronized (this) {
+						s = mQueue.pollFirst();
+					}
+					if (s == null) {
+						break;
+					}
+					if (mDemand.get() != Long.MAX_VALUE) {
+						mDemand.decrementAndGet();
+					}
+					mSubscriber.onNext(s);
+				}
+				if (mDone && !mCancelled) {
+					boolean empty;
+					synchronized (this) {
+						empty = mQueue.isEmpty();
+					}
+					if (empty) {
+						mCancelled = true;
+						mSubscriber.onComplete();
+					}
+				}
+				missed = mWip.addAndGet(-missed);
+			} while (missed != 0);
+		}
+	}
+}
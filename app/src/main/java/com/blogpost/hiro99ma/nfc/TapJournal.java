@@ -0,0 +1,331 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.util.Log;
+
+
+/**
+ * @class	TapJournal
+ * @brief	タップ記録用のリングジャーナル(memory-mapped)
+ *
+ * 固定長レコードをファイル上のリングに追記する。<br>
+ * - 追記時のアロケーションは無い。<br>
+ * - レコード本体を書いてから先頭のseqを書き、最後にヘッダを更新する。<br>
+ *   途中で落ちた場合、seqが一致しないレコードは無効として扱う。<br>
+ * - 容量を超えた場合、古いものから上書きする。<br>
+ */
+public class TapJournal {
+	public static final int OP_READ = 1;
+	public static final int OP_NDEF_FORMAT = 2;
+	public static final int OP_RAW_FORMAT = 3;
+
+	public static final int RESULT_OK = 0;
+	public static final int RESULT_FAIL = 1;
+	public static final int RESULT_TAG_LOST = 2;
+	public static final int RESULT_DUPLICATE = 3;		//再タップ(RFを使わずに前回の結果を返した)
+
+	private static final String TAG = "TapJournal";
+
+	private static final int MAGIC = 0x544a4e4c;		//"TJNL"
+	private static final int VERSION = 1;
+
+	/*
+	 * header
+	 *  0 : magic
+	 *  4 : version
+	 *  8 : capacity
+	 * 12 : record size
+	 * 16 : next seq
+	 */
+	private static final int HEADER_SIZE = 32;
+	private static final int OFFSET_CAPACITY = 8;
+	private static final int OFFSET_RECSIZE = 12;
+	private static final int OFFSET_NEXT = 16;
+
+	/*
+	 * record
+	 *  0 : seq(1～。0は未使用)
+	 *  8 : IDm
+	 * 16 : timestamp[ms]
+	 * 24 : operation
+	 * 26 : result
+	 * 28 : latency[us]
+	 */
+	private static final int RECORD_SIZE = 32;
+	private static final int REC_SEQ = 0;
+	private static final int REC_IDM = 8;
+	private static final int REC_TIME = 16;
+	private static final int REC_OP = 24;
+	private static final int REC_RESULT = 26;
+	private static final int REC_LATENCY = 28;
+
+	private final RandomAccessFile mFile;
+	private final MappedByteBuffer mMap;
+	private final int mCapacity;
+	private long mNext;
+
+
+	private TapJournal(RandomAccessFile file, MappedByteBuffer map, int capacity, long next) {
+		mFile = file;
+		mMap = map;
+		mCapacity = capacity;
+		mNext = next;
+	}
+
+	/**
+	 * ジャーナルを開く。無ければ作る。
+	 *
+	 * @param file			[in]ジャーナルファイル
+	 * @param capacity		[in]保持するレコード数(新規作成時のみ有効)
+	 * @return				(!=null)ジャーナル / (==null)エラー
+	 */
+	public static TapJournal open(File file, int capacity) {
+		if (capacity <= 0) {
+			Log.e(TAG, "open : param");
+			return null;
+		}
+
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "rw");
+			boolean create = (raf.length() < HEADER_SIZE);
+			if (!create) {
+				//既存ファイルの容量を優先する
+				raf.seek(0);
+				int magic = raf.readInt();
+				int ver = raf.readInt();
+				int cap = raf.readInt();
+				int recsize = raf.readInt();
+				if ((magic != MAGIC) || (ver != VERSION) || (recsize != RECORD_SIZE) || (cap <= 0)
+						|| (raf.length() < HEADER_SIZE + (long)cap * RECORD_SIZE)) {
+					Log.w(TAG, "open : broken header, recreate");
+					create = true;
+				} else {
+					capacity = cap;
+				}
+			}
+			long size = HEADER_SIZE + (long)capacity * RECORD_SIZE;
+			if (create) {
+				raf.setLength(0);
+				raf.setLength(size);
+			}
+
+			MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			map.order(ByteOrder.BIG_ENDIAN);
+			if (create) {
+				map.putInt(0, MAGIC);
+				map.putInt(4, VERSION);
+				map.putInt(OFFSET_CAPACITY, capacity);
+				map.putInt(OFFSET_RECSIZE, RECORD_SIZE);
+				map.putLong(OFFSET_NEXT, 1);
+				map.force();
+			}
+
+			TapJournal me = new TapJournal(raf, map, capacity, map.getLong(OFFSET_NEXT));
+			me.recover();
+			return me;
+		} catch (IOException e) {
+			Log.e(TAG, "open : ioexception");
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e2) {
+					Log.e(TAG, "open : close");
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * ヘッダ更新前に落ちた場合、書き終わっているレコードまでnextを進める
+	 */
+	private void recover() {
+		if (mNext < 1) {
+			mNext = 1;
+		}
+		for (int loop = 0; loop < mCapacity; loop++) {
+			if (mMap.getLong(offset(mNext) + REC_SEQ) != mNext) {
+				break;
+			}
+			mNext++;
+		}
+		mMap.putLong(OFFSET_NEXT, mNext);
+	}
+
+	private int offset(long seq) {
+		return HEADER_SIZE + (int)((seq - 1) % mCapacity) * RECORD_SIZE;
+	}
+
+	/**
+	 * 1タップ分を追記する
+	 *
+	 * @param idm			[in]IDm({@link FelicaLite#toIdmLong(byte[])})
+	 * @param timeMillis	[in]時刻[ms]
+	 * @param op			[in]操作(OP_xxx)
+	 * @param result		[in]結果(RESULT_xxx)
+	 * @param latencyUs		[in]処理時間[us]
+	 */
+	public synchronized void append(long idm, long timeMillis, int op, int result, int latencyUs) {
+		long seq = mNext;
+		int pos = offset(seq);
+
+		//先に無効化してから本体を書く
+		mMap.putLong(pos + REC_SEQ, 0);
+		mMap.putLong(pos + REC_IDM, idm);
+		mMap.putLong(pos + REC_TIME, timeMillis);
+		mMap.putShort(pos + REC_OP, (short)op);
+		mMap.put(pos + REC_RESULT, (byte)result);
+		mMap.putInt(pos + REC_LATENCY, latencyUs);
+		//commit
+		mMap.putLong(pos + REC_SEQ, seq);
+
+		mNext = seq + 1;
+		mMap.putLong(OFFSET_NEXT, mNext);
+	}
+
+	/**
+	 * ディスクへ書き出す。<br>
+	 * 追記の度には呼ばず、onPause()などで呼び出すこと。
+	 */
+	public synchronized void sync() {
+		mMap.force();
+	}
+
+	/**
+	 * 閉じる
+	 */
+	public synchronized void close() {
+		mMap.force();
+		try {
+			mFile.close();
+		} catch (IOException e) {
+			Log.e(TAG, "close : ioexception");
+		}
+	}
+
+	public int getCapacity() {
+		return mCapacity;
+	}
+
+	/**
+	 * @return	これまでに追記したレコード数(上書き分を含む)
+	 */
+	public synchronized long getCount() {
+		return mNext - 1;
+	}
+
+	/**
+	 * 古い順に読み出すReaderを作る。<br>
+	 * 作成時点までに追記されたレコードが対象。
+	 */
+	public synchronized Reader reader() {
+		long first = mNext - mCapacity;
+		if (first < 1) {
+			first = 1;
+		}
+		return new Reader(first, mNext);
+	}
+
+	/**
+	 * CSVで書き出す
+	 *
+	 * @param out		[in]出力先
+	 * @throws IOException
+	 */
+	public void export(Writer out) throws IOException {
+		Reader rd = reader();
+		out.write("seq,idm,time,op,result,latency_us\n");
+		while (rd.next()) {
+			out.write(Long.toString(rd.getSeq()));
+			out.write(',');
+			out.write(String.format("%016x", rd.getIdm()));
+			out.write(',');
+			out.write(Long.toString(rd.getTime()));
+			out.write(',');
+			out.write(Integer.toString(rd.getOperation()));
+			out.write(',');
+			out.write(Integer.toString(rd.getResult()));
+			out.write(',');
+			out.write(Integer.toString(rd.getLatency()));
+			out.write('\n');
+		}
+		out.flush();
+	}
+
+
+	/**
+	 * @class	Reader
+	 * @brief	シーケンシャルリーダ
+	 *
+	 * {@link #next()}でカーソルを進め、getterで現在のレコードを取得する。<br>
+	 * 読み出し中に上書きされたレコードは読み飛ばす。
+	 */
+	public class Reader {
+		private long mSeq;
+		private final long mEnd;
+		private long mIdm;
+		private long mTime;
+		private int mOp;
+		private int mResult;
+		private int mLatency;
+
+		private Reader(long first, long end) {
+			mSeq = first - 1;
+			mEnd = end;
+		}
+
+		/**
+		 * @return	true:次のレコードがある / false:終わり
+		 */
+		public boolean next() {
+			synchronized (TapJournal.this) {
+				while (++mSeq < mEnd) {
+					int pos = offset(mSeq);
+					if (mMap.getLong(pos + REC_SEQ) != mSeq) {
+						//上書きされたか、書きかけ
+						continue;
+					}
+					mIdm = mMap.getLong(pos + REC_IDM);
+					mTime = mMap.getLong(pos + REC_TIME);
+					mOp = mMap.getShort(pos + REC_OP);
+					mResult = mMap.get(pos + REC_RESULT);
+					mLatency = mMap.getInt(pos + REC_LATENCY);
+					return true;
+				}
+				return false;
+			}
+		}
+
+		public long getSeq() {
+			return mSeq;
+		}
+
+		public long getIdm() {
+			return mIdm;
+		}
+
+		public long getTime() {
+			return mTime;
+		}
+
+		public int getOperation() {
+			return mOp;
+		}
+
+		public int getResult() {
+			return mResult;
+		}
+
+		public int getLatency() {
+			return mLatency;
+		}
+	}
+}
@@ -0,0 +1,184 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * @class	TapLedger
+ * @brief	IDmごとの直近の操作結果を覚えておき、カードのバウンスによる再タップを弾く
+ *
+ * - IDmのハッシュで決まるスロットに、最新の1件だけを置く(古いものは上書き)。<br>
+ * - スロットの更新はCASで行うので、ロックは使わない。<br>
+ * - ウィンドウ時間内に同じIDm・同じ操作が来たら、{@link #begin(long, int)}が
+ *   BEGIN_DONEを返すので、RFを使わずに{@link Entry#getResult()}を返せばよい。<br>
+ * - 前回が途中で失敗({@link #abort(long, int, int)})していた場合はBEGIN_RESUMEを返す。<br>
+ */
+public class TapLedger {
+	public static final int BEGIN_NEW = 0;		//新規。処理すること
+	public static final int BEGIN_RESUME = 1;	//前回が途中で終わった。続きから処理すること
+	public static final int BEGIN_DONE = 2;		//完了済み。結果を使うこと
+	public static final int BEGIN_BUSY = 3;		//別スレッドで処理中
+
+	public static final int STATE_RUNNING = 0;
+	public static final int STATE_DONE = 1;
+	public static final int STATE_ABORTED = 2;
+
+	private final AtomicReferenceArray<Entry> mSlots;
+	private final int mMask;
+	private final long mWindowNs;
+
+
+	/**
+	 * @class	Entry
+	 * @brief	1件分(不変)
+	 */
+	public static class Entry {
+		private final long mIdm;
+		private final int mOp;
+		private final int mState;
+		private final long mTime;
+		private final boolean mSuccess;
+		private final Object mResult;
+		private final int mProgress;
+
+		private Entry(long idm, int op, int state, long time, boolean success, Object result, int progress) {
+			mIdm = idm;
+			mOp = op;
+			mState = state;
+			mTime = time;
+			mSuccess = success;
+			mResult = result;
+			mProgress = progress;
+		}
+
+		public long getIdm() {
+			return mIdm;
+		}
+
+		public int getOperation() {
+			return mOp;
+		}
+
+		public int getState() {
+			return mState;
+		}
+
+		/**
+		 * @return	true:操作が成功した(STATE_DONEのときのみ有効)
+		 */
+		public boolean isSuccess() {
+			return mSuccess;
+		}
+
+		/**
+		 * @return	{@link TapLedger#complete(long, int, boolean, Object)}で渡した結果
+		 */
+		public Object getResult() {
+			return mResult;
+		}
+
+		/**
+		 * @return	{@link TapLedger#abort(long, int, int)}で渡した進捗
+		 */
+		public int getProgress() {
+			return mProgress;
+		}
+	}
+
+
+	/**
+	 * @param slots		[in]保持するスロット数(2の累乗に切り上げる)
+	 * @param windowMs	[in]同じタップとみなす時間[ms]
+	 */
+	public TapLedger(int slots, int windowMs) {
+		int capacity = 1;
+		while (capacity < slots) {
+			capacity <<= 1;
+		}
+		mSlots = new AtomicReferenceArray<Entry>(capacity);
+		mMask = capacity - 1;
+		mWindowNs = windowMs * 1000000L;
+	}
+
+	/**
+	 * 操作開始前に呼び出す
+	 *
+	 * @param idm		[in]IDm({@link FelicaLite#toIdmLong(byte[])})
+	 * @param op		[in]操作(TapJournal.OP_xxxなど)
+	 * @return			BEGIN_xxx
+	 */
+	public int begin(long idm, int op) {
+		int pos = index(idm);
+		long now = System.nanoTime();
+		while (true) {
+			Entry cur = mSlots.get(pos);
+			int ret = BEGIN_NEW;
+			int progress = 0;
+			if ((cur != null) && (cur.mIdm == idm) && (cur.mOp == op) && (now - cur.mTime < mWindowNs)) {
+				if (cur.mState == STATE_DONE) {
+					return BEGIN_DONE;
+				} else if (cur.mState == STATE_RUNNING) {
+					return BEGIN_BUSY;
+				}
+				ret = BEGIN_RESUME;
+				progress = cur.mProgress;
+			}
+			if (mSlots.compareAndSet(pos, cur, new Entry(idm, op, STATE_RUNNING, now, false, null, progress))) {
+				return ret;
+			}
+		}
+	}
+
+	/**
+	 * 操作完了時に呼び出す
+	 *
+	 * @param idm		[in]IDm
+	 * @param op		[in]操作
+	 * @param success	[in]true:成功
+	 * @param result	[in]再タップ時に返す結果(null可)
+	 */
+	public void complete(long idm, int op, boolean success, Object result) {
+		update(new Entry(idm, op, STATE_DONE, System.nanoTime(), success, result, 0));
+	}
+
+	/**
+	 * 操作が途中で終わった(Tag Lostなど)ときに呼び出す
+	 *
+	 * @param idm		[in]IDm
+	 * @param op		[in]操作
+	 * @param progress	[in]再開時に使う進捗(操作ごとに意味を決める)
+	 */
+	public void abort(long idm, int op, int progress) {
+		update(new Entry(idm, op, STATE_ABORTED, System.nanoTime(), false, null, progress));
+	}
+
+	/**
+	 * @return		IDmと操作が一致する記録 / null
+	 */
+	public Entry get(long idm, int op) {
+		Entry cur = mSlots.get(index(idm));
+		if ((cur != null) && (cur.mIdm == idm) && (cur.mOp == op)) {
+			return cur;
+		}
+		return null;
+	}
+
+	private void update(Entry entry) {
+		int pos = index(entry.mIdm);
+		while (true) {
+			Entry cur = mSlots.get(pos);
+			//別のIDmに取られていたら、そちらを優先する
+			if ((cur != null) && ((cur.mIdm != entry.mIdm) || (cur.mOp != entry.mOp))) {
+				return;
+			}
+			if (mSlots.compareAndSet(pos, cur, entry)) {
+				return;
+			}
+		}
+	}
+
+	private int index(long idm) {
+		long h = idm * 0x9e3779b97f4a7c15L;
+		return (int)(h >>> 32) & mMask;
+	}
+}
@@ -0,0 +1,253 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.io.IOException;
+import java.io.Writer;
+
+
+/**
+ * @class	TapTracer
+ * @brief	1タップの処理時間をステージごとに記録する
+ *
+ * - 時刻は{@link System#nanoTime()}(単調増加)を使う。<br>
+ * - spanは起動時に確保したリングバッファに記録するので、記録時のアロケーションは無い。<br>
+ * - foreground dispatchでは、タグ検出時にonPause() → onNewIntent() → onResume()の順で呼ばれる。<br>
+ *   {@link #markDispatch()}をonPause()で呼んでおくと、{@link #beginTap()}までをSTAGE_DISPATCHとして記録する。<br>
+ * - {@link #beginTap()}～{@link #endTap()}の外で始めたspan(STAGE_RESUMEなど)はどのタップにも含めない。<br>
+ */
+public class TapTracer {
+	public static final int STAGE_TAP = 0;			//タップ全体
+	public static final int STAGE_DISPATCH = 1;		//intent配送(onPause～onNewIntent)
+	public static final int STAGE_GET_TAG = 2;		//IntentからTag取得
+	public static final int STAGE_TECH = 3;			//技術判定(FelicaLite.get)
+	public static final int STAGE_CONNECT = 4;
+	public static final int STAGE_COMMAND = 5;		//コマンド1回分(detailにコマンドコード)
+	public static final int STAGE_CLOSE = 6;
+	public static final int STAGE_RESUME = 7;		//検出準備(NfcFactory.nfcResume)
+	public static final int STAGE_NUM = 8;
+
+	private static final String[] STAGE_NAME = new String[] {
+		"tap", "dispatch", "getTag", "tech", "connect", "command", "close", "resume",
+	};
+
+	private static final int CAPACITY = 1024;		//2の累乗
+
+	//タップの外で始めたspan
+	private static final int NO_TAP = 0;
+
+	//onPause()からこれ以上経過したonNewIntent()はタップによるものとみなさない
+	private static final long DISPATCH_LIMIT_NS = 2000000000L;
+
+	private static final int[] mSeq = new int[CAPACITY];		//spanの通し番号(下位31bit)
+	private static final int[] mTap = new int[CAPACITY];
+	private static final int[] mStage = new int[CAPACITY];
+	private static final int[] mDetail = new int[CAPACITY];
+	private static final long[] mStart = new long[CAPACITY];
+	private static final long[] mEnd = new long[CAPACITY];
+	private static long mNext = 0;
+
+	private static int mCurrentTap = 0;
+	private static int mTapSpan = -1;
+	private static long mDispatchStart = 0;
+
+
+	private TapTracer() {
+		;
+	}
+
+	/**
+	 * onPause()で呼び出す
+	 */
+	public static synchronized void markDispatch() {
+		mDispatchStart = System.nanoTime();
+	}
+
+	/**
+	 * タップの処理開始時(onNewIntent()の先頭など)に呼び出す
+	 *
+	 * @return		タップ番号
+	 */
+	public static synchronized int beginTap() {
+		long now = System.nanoTime();
+		if (mTapSpan >= 0) {
+			//endTap()が呼ばれていない
+			endTap();
+		}
+		mCurrentTap++;
+		if (mCurrentTap == NO_TAP) {
+			mCurrentTap++;
+		}
+		if ((mDispatchStart != 0) && (now - mDispatchStart < DISPATCH_LIMIT_NS)) {
+			int span = alloc(STAGE_DISPATCH, mCurrentTap, 0, mDispatchStart);
+			mEnd[span & (CAPACITY - 1)] = now;
+		}
+		mDispatchStart = 0;
+		mTapSpan = alloc(STAGE_TAP, mCurrentTap, 0, now);
+		return mCurrentTap;
+	}
+
+	/**
+	 * タップの処理終了時に呼び出す(閉じた後に呼んでも何もしない)
+	 */
+	public static synchronized void endTap() {
+		if (mTapSpan >= 0) {
+			end(mTapSpan);
+			mTapSpan = -1;
+		}
+	}
+
+	/**
+	 * span開始
+	 *
+	 * @param stage		[in]STAGE_xxx
+	 * @param detail	[in]付加情報(コマンドコードなど)
+	 * @return			{@link #end(int)}に渡す値
+	 */
+	public static synchronized int begin(int stage, int detail) {
+		return alloc(stage, (mTapSpan >= 0) ? mCurrentTap : NO_TAP, detail, System.nanoTime());
+	}
+
+	public static int begin(int stage) {
+		return begin(stage, 0);
+	}
+
+	/**
+	 * span終了
+	 *
+	 * @param span		[in]{@link #begin(int, int)}の戻り値
+	 */
+	public static synchronized void end(int span) {
+		int slot = span & (CAPACITY - 1);
+		if (mSeq[slot] != span) {
+			//1周して別のspanに上書きされている
+			return;
+		}
+		if (mEnd[slot] == 0) {
+			mEnd[slot] = System.nanoTime();
+		}
+	}
+
+	/**
+	 * @return		spanの通し番号(下位31bit。下位bitがスロット)
+	 */
+	private static int alloc(int stage, int tap, int detail, long start) {
+		int span = (int)(mNext & Integer.MAX_VALUE);
+		int slot = span & (CAPACITY - 1);
+		mNext++;
+		mSeq[slot] = span;
+		mTap[slot] = tap;
+		mStage[slot] = stage;
+		mDetail[slot] = detail;
+		mStart[slot] = start;
+		mEnd[slot] = 0;
+		return span;
+	}
+
+	/**
+	 * 記録を消す
+	 */
+	public static synchronized void clear() {
+		mNext = 0;
+		mTapSpan = -1;
+		mDispatchStart = 0;
+	}
+
+	/**
+	 * ステージごとの集計(回数、平均、最大)を文字列で返す。<br>
+	 * タップの外のspanは別に集計する。
+	 */
+	public static synchronized String getSummary() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("stage      count   avg[ms]   max[ms]\n");
+		summarize(sb, true);
+		int len = sb.length();
+		sb.append("(outside tap)\n");
+		if (summarize(sb, false) == 0) {
+			sb.setLength(len);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @param inTap		[in]true:タップ内のspan / false:タップ外のspan
+	 * @return			集計したspanの数
+	 */
+	private static int summarize(StringBuilder sb, boolean inTap) {
+		int[] count = new int[STAGE_NUM];
+		long[] sum = new long[STAGE_NUM];
+		long[] max = new long[STAGE_NUM];
+		int total = 0;
+
+		long first = (mNext > CAPACITY) ? mNext - CAPACITY : 0;
+		for (long seq = first; seq < mNext; seq++) {
+			int slot = (int)(seq & (CAPACITY - 1));
+			if ((mEnd[slot] == 0) || ((mTap[slot] != NO_TAP) != inTap)) {
+				continue;
+			}
+			int stage = mStage[slot];
+			long dur = mEnd[slot] - mStart[slot];
+			total++;
+			count[stage]++;
+			sum[stage] += dur;
+			if (dur > max[stage]) {
+				max[stage] = dur;
+			}
+		}
+
+		for (int stage = 0; stage < STAGE_NUM; stage++) {
+			if (count[stage] == 0) {
+				continue;
+			}
+			sb.append(String.format("%-9s %6d %9.2f %9.2f\n",
+					STAGE_NAME[stage], count[stage],
+					sum[stage] / (double)count[stage] / 1000000.0,
+					max[stage] / 1000000.0));
+		}
+		return total;
+	}
+
+	/**
+	 * 記録しているspanをCSVで書き出す
+	 *
+	 * @param out		[in]出力先
+	 * @throws IOException
+	 */
+	public static void export(Writer out) throws IOException {
+		int num;
+		int[] tap = new int[CAPACITY];
+		int[] stage = new int[CAPACITY];
+		int[] detail = new int[CAPACITY];
+		long[] start = new long[CAPACITY];
+		long[] end = new long[CAPACITY];
+
+		//書き出し中はロックしない
+		synchronized (TapTracer.class) {
+			long first = (mNext > CAPACITY) ? mNext - CAPACITY : 0;
+			num = (int)(mNext - first);
+			for (int i = 0; i < num; i++) {
+				int slot = (int)((first + i) & (CAPACITY - 1));
+				tap[i] = mTap[slot];
+				stage[i] = mStage[slot];
+				detail[i] = mDetail[slot];
+				start[i] = mStart[slot];
+				end[i] = mEnd[slot];
+			}
+		}
+
+		out.write("tap,stage,detail,start_ns,duration_ns\n");
+		for (int i = 0; i < num; i++) {
+			if (tap[i] != NO_TAP) {
+				out.write(Integer.toString(tap[i]));
+			}
+			out.write(',');
+			out.write(STAGE_NAME[stage[i]]);
+			out.write(',');
+			out.write(Integer.toString(detail[i]));
+			out.write(',');
+			out.write(Long.toString(start[i]));
+			out.write(',');
+			out.write((end[i] != 0) ? Long.toString(end[i] - start[i]) : "");
+			out.write('\n');
+		}
+		out.flush();
+	}
+}
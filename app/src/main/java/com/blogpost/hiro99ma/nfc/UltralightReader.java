@@ -0,0 +1,200 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.io.IOException;
+
+import android.nfc.Tag;
+import android.nfc.tech.MifareUltralight;
+import android.util.Log;
+
+
+/**
+ * @class	UltralightReader
+ * @brief	MIFARE Ultralight / NTAGの全メモリ読み込み
+ *
+ * - GET_VERSIONに応答するカード(Ultralight EV1、NTAG21x)は、容量を判定してFAST_READでまとめて読む。<br>
+ * - 応答しないカード(Ultralight、Ultralight C)は{@link MifareUltralight#readPages(int)}で4ページずつ読む。<br>
+ */
+public class UltralightReader {
+	private static final String TAG = "UltralightReader";
+
+	private static final byte CMD_GET_VERSION = (byte)0x60;
+	private static final byte CMD_FAST_READ = (byte)0x3a;
+
+	private static final int SIZE_PAGE = MifareUltralight.PAGE_SIZE;
+	private static final int PAGES_ULTRALIGHT = 16;
+	private static final int PAGES_ULTRALIGHT_C = 44;	//0x2c～0x2fは鍵(読めない)
+
+
+	private UltralightReader() {
+		;
+	}
+
+	/**
+	 * 全メモリを読み込む
+	 *
+	 * @param tag		[in]MIFARE Ultralight系のTag
+	 * @return			(!=null)読み込んだイメージ / (==null)エラー
+	 */
+	public static CardImage dump(Tag tag) {
+		MifareUltralight mifare = MifareUltralight.get(tag);
+		if (mifare == null) {
+			Log.e(TAG, "dump : not MIFARE Ultralight");
+			return null;
+		}
+
+		CardImage image = null;
+		try {
+			mifare.connect();
+
+			byte[] version = getVersion(mifare);
+			int pages;
+			if (version != null) {
+				pages = pagesFromVersion(version);
+			} else {
+				//NAKでカードがHALTしているので、つなぎ直す
+				mifare.close();
+				mifare.connect();
+				pages = (mifare.getType() == MifareUltralight.TYPE_ULTRALIGHT_C) ? PAGES_ULTRALIGHT_C : PAGES_ULTRALIGHT;
+			}
+
+			byte[] data = null;
+			if ((version != null) && (pages > 0)) {
+				data = fastRead(mifare, pages);
+				if (data == null) {
+					//FAST_READのNAKでもHALTしているので、つなぎ直してからREADする
+					mifare.close();
+					mifare.connect();
+				}
+			}
+			if (data == null) {
+				if (pages <= 0) {
+					pages = PAGES_ULTRALIGHT;
+				}
+				data = readPages(mifare, pages);
+			}
+
+			if (data != null) {
+				int[] units = new int[pages];
+				for (int i = 0; i < pages; i++) {
+					units[i] = i;
+				}
+				image = new CardImage(CardImage.TYPE_MIFARE_UL, tag.getId(), version, SIZE_PAGE, units, data);
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "dump : ioexception");
+		}
+
+		try {
+			mifare.close();
+		} catch (IOException e) {
+			Log.e(TAG, "dump : close");
+		}
+		return image;
+	}
+
+	/**
+	 * @return		(!=null)GET_VERSIONの応答(8byte) / (==null)非対応
+	 */
+	private static byte[] getVersion(MifareUltralight mifare) {
+		try {
+			byte[] ret = transceive(mifare, new byte[] { CMD_GET_VERSION });
+			if ((ret == null) || (ret.length != 8)) {
+				Log.d(TAG, "getVersion : length");
+				return null;
+			}
+			return ret;
+		} catch (IOException e) {
+			//未対応のカードはNAKを返す
+			Log.d(TAG, "getVersion : not supported");
+			return null;
+		}
+	}
+
+	/**
+	 * GET_VERSIONのstorage sizeから総ページ数を求める
+	 *
+	 * @return		(>0)ページ数 / (<=0)不明
+	 */
+	private static int pagesFromVersion(byte[] version) {
+		switch (version[6]) {
+		case 0x0b:		//Ultralight EV1(MF0UL11) / NTAG210
+			return 20;
+		case 0x0e:		//Ultralight EV1(MF0UL21) / NTAG212
+			return 41;
+		case 0x0f:		//NTAG213
+			return 45;
+		case 0x11:		//NTAG215
+			return 135;
+		case 0x13:		//NTAG216
+			return 231;
+		default:
+			Log.w(TAG, "pagesFromVersion : unknown storage size");
+			return 0;
+		}
+	}
+
+	/**
+	 * FAST_READで読む。1回の応答がgetMaxTransceiveLength()に収まるよう分割する。
+	 *
+	 * @return		(!=null)データ / (==null)失敗
+	 */
+	private static byte[] fastRead(MifareUltralight mifare, int pages) {
+		int chunk = mifare.getMaxTransceiveLength() / SIZE_PAGE - 1;
+		if (chunk <= 0) {
+			return null;
+		}
+
+		byte[] data = new byte[pages * SIZE_PAGE];
+		try {
+			for (int page = 0; page < pages; page += chunk) {
+				int end = Math.min(page + chunk, pages) - 1;
+				byte[] ret = transceive(mifare, new byte[] { CMD_FAST_READ, (byte)page, (byte)end });
+				int len = (end - page + 1) * SIZE_PAGE;
+				if ((ret == null) || (ret.length < len)) {
+					NfcLog.e(NfcLog.EV_FAST_READ_LENGTH, page, NfcLog.NONE, NfcLog.NONE, (ret != null) ? ret.length : NfcLog.NONE);
+					return null;
+				}
+				System.arraycopy(ret, 0, data, page * SIZE_PAGE, len);
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "fastRead : ioexception");
+			return null;
+		}
+		return data;
+	}
+
+	/**
+	 * READ(4ページ単位)で読む
+	 *
+	 * @return		(!=null)データ / (==null)失敗
+	 */
+	private static byte[] readPages(MifareUltralight mifare, int pages) throws IOException {
+		byte[] data = new byte[pages * SIZE_PAGE];
+		for (int page = 0; page < pages; page += 4) {
+			int span = TapTracer.begin(TapTracer.STAGE_COMMAND, 0x30);
+			byte[] ret;
+			try {
+				ret = mifare.readPages(page);
+			} finally {
+				TapTracer.end(span);
+			}
+			//最終ページを越えた分は先頭に戻って読まれるので捨てる
+			int len = Math.min(4, pages - page) * SIZE_PAGE;
+			if ((ret == null) || (ret.length < len)) {
+				NfcLog.e(NfcLog.EV_READ_PAGES_LENGTH, page, NfcLog.NONE, NfcLog.NONE, (ret != null) ? ret.length : NfcLog.NONE);
+				return null;
+			}
+			System.arraycopy(ret, 0, data, page * SIZE_PAGE, len);
+		}
+		return data;
+	}
+
+	private static byte[] transceive(MifareUltralight mifare, byte[] cmd) throws IOException {
+		int span = TapTracer.begin(TapTracer.STAGE_COMMAND, cmd[0] & 0xff);
+		try {
+			return mifare.transceive(cmd);
+		} finally {
+			TapTracer.end(span);
+		}
+	}
+}
@@ -0,0 +1,240 @@
+package com.blogpost.hiro99ma.nfc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+
+import android.util.Log;
+
+
+/**
+ * @class	UserAreaChannel
+ * @brief	FeliCa Liteのユーザ領域(PAD0～PAD13, 224byte)をバイト単位で読み書きする
+ *
+ * - ブロック単位のwrite-backバッファを持ち、書き込んだブロックをdirtyとして覚える。<br>
+ * - {@link #flush()}でdirtyなブロックを1回ずつ{@link FelicaLite#writeBlock(int, byte[])}する。
+ *   同じブロックへの小さな書込みは何回あっても1回になる。<br>
+ * - 未読込みのブロックは{@link FelicaLite#readBlocks(int[])}でまとめて読む。
+ *   ブロック全体を上書きする場合は読まない。<br>
+ * - SeekableByteChannelはAPI 24からなので、同じ名前のメソッド(position/size)を持たせている。<br>
+ * - {@link FelicaLite#connect()}/{@link FelicaLite#close()}は呼び出し側で行うこと。<br>
+ */
+public class UserAreaChannel implements ByteChannel {
+	public static final int BLOCK_NUM = FelicaLite.PAD13 - FelicaLite.PAD0 + 1;
+	public static final int SIZE = BLOCK_NUM * FelicaLite.SIZE_BLOCK;
+
+	private static final String TAG = "UserAreaChannel";
+
+	private final FelicaLite mFelica;
+	private final byte[] mBuf = new byte[SIZE];
+	private final byte[] mBlock = new byte[FelicaLite.SIZE_BLOCK];
+	private int mLoaded = 0;		//bit n : PADn読込み済み
+	private int mDirty = 0;			//bit n : PADn書込み待ち
+	private int mPosition = 0;
+	private boolean mOpen = true;
+
+
+	/**
+	 * @param felica	[in]connect済みのFelicaLite
+	 */
+	public UserAreaChannel(FelicaLite felica) {
+		mFelica = felica;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		checkOpen();
+		if (mPosition >= SIZE) {
+			return -1;
+		}
+		int len = Math.min(dst.remaining(), SIZE - mPosition);
+		if (len == 0) {
+			return 0;
+		}
+		load(blockMask(mPosition, len));
+		dst.put(mBuf, mPosition, len);
+		mPosition += len;
+		return len;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		checkOpen();
+		int len = src.remaining();
+		if (mPosition + len > SIZE) {
+			//ユーザ領域の外には書けない
+			len = SIZE - mPosition;
+			if (len <= 0) {
+				throw new IOException("user area full");
+			}
+		}
+		if (len == 0) {
+			return 0;
+		}
+
+		//一部だけ書き換えるブロックは、先に読んでおく(全体を書き換えるブロックは読まない)
+		int end = mPosition + len;
+		int partial = 0;
+		if ((mPosition % FelicaLite.SIZE_BLOCK) != 0) {
+			partial |= 1 << (mPosition / FelicaLite.SIZE_BLOCK);
+		}
+		if ((end % FelicaLite.SIZE_BLOCK) != 0) {
+			partial |= 1 << (end / FelicaLite.SIZE_BLOCK);
+		}
+		load(partial);
+
+		src.get(mBuf, mPosition, len);
+		int touched = blockMask(mPosition, len);
+		mLoaded |= touched;
+		mDirty |= touched;
+		mPosition = end;
+		return len;
+	}
+
+	/**
+	 * dirtyなブロックを書き込む
+	 *
+	 * @throws IOException	書込み失敗(失敗したブロック以降はdirtyのまま残る)
+	 */
+	public void flush() throws IOException {
+		checkOpen();
+		for (int blk = 0; blk < BLOCK_NUM; blk++) {
+			if ((mDirty & (1 << blk)) == 0) {
+				continue;
+			}
+			System.arraycopy(mBuf, blk * FelicaLite.SIZE_BLOCK, mBlock, 0, FelicaLite.SIZE_BLOCK);
+			if (!mFelica.writeBlock(FelicaLite.PAD0 + blk, mBlock)) {
+				Log.e(TAG, "flush : writeBlock");
+				throw new IOException("writeBlock : " + blk);
+			}
+			mDirty &= ~(1 << blk);
+		}
+	}
+
+	/**
+	 * 指定ブロックのうち、未読込みのものをまとめて読む
+	 *
+	 * @param blockNo	[in]ブロック番号(PAD0～PAD13)
+	 * @throws IOException	読込み失敗
+	 */
+	public void load(int[] blockNo) throws IOException {
+		checkOpen();
+		int mask = 0;
+		for (int blk : blockNo) {
+			if ((blk < FelicaLite.PAD0) || (blk > FelicaLite.PAD13)) {
+				throw new IllegalArgumentException("block : " + blk);
+			}
+			mask |= 1 << (blk - FelicaLite.PAD0);
+		}
+		load(mask);
+	}
+
+	/**
+	 * @param blockNo	[in]ブロック番号(PAD0～PAD13)
+	 * @return			true:読込み済み(または書込み済み)
+	 */
+	public boolean isLoaded(int blockNo) {
+		return (mLoaded & (1 << (blockNo - FelicaLite.PAD0))) != 0;
+	}
+
+	/**
+	 * キャッシュを捨てる(dirtyなブロックも捨てる)
+	 */
+	public void invalidate() {
+		mLoaded = 0;
+		mDirty = 0;
+	}
+
+	/**
+	 * @return	書込み待ちのブロック番号(PAD0～)
+	 */
+	public int[] getDirtyBlocks() {
+		int[] list = new int[Integer.bitCount(mDirty)];
+		int num = 0;
+		for (int blk = 0; blk < BLOCK_NUM; blk++) {
+			if ((mDirty & (1 << blk)) != 0) {
+				list[num++] = FelicaLite.PAD0 + blk;
+			}
+		}
+		return list;
+	}
+
+	public long position() {
+		return mPosition;
+	}
+
+	public UserAreaChannel position(long newPosition) {
+		if ((newPosition < 0) || (newPosition > SIZE)) {
+			throw new IllegalArgumentException("position : " + newPosition);
+		}
+		mPosition = (int)newPosition;
+		return this;
+	}
+
+	public long size() {
+		return SIZE;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return mOpen;
+	}
+
+	/**
+	 * dirtyなブロックを書き込んでから閉じる。FelicaLiteはcloseしない。
+	 */
+	@Override
+	public void close() throws IOException {
+		if (!mOpen) {
+			return;
+		}
+		try {
+			flush();
+		} finally {
+			mOpen = false;
+		}
+	}
+
+	private void checkOpen() throws ClosedChannelException {
+		if (!mOpen) {
+			throw new ClosedChannelException();
+		}
+	}
+
+	private static int blockMask(int pos, int len) {
+		int first = pos / FelicaLite.SIZE_BLOCK;
+		int last = (pos + len - 1) / FelicaLite.SIZE_BLOCK;
+		int mask = 0;
+		for (int blk = first; blk <= last; blk++) {
+			mask |= 1 << blk;
+		}
+		return mask;
+	}
+
+	/**
+	 * maskのうち未読込みのブロックをまとめて読む
+	 */
+	private void load(int mask) throws IOException {
+		int need = mask & ~mLoaded;
+		if (need == 0) {
+			return;
+		}
+		int[] list = new int[Integer.bitCount(need)];
+		int num = 0;
+		for (int blk = 0; blk < BLOCK_NUM; blk++) {
+			if ((need & (1 << blk)) != 0) {
+				list[num++] = FelicaLite.PAD0 + blk;
+			}
+		}
+		byte[] rd = mFelica.readBlocks(list);
+		if (rd == null) {
+			Log.e(TAG, "load : readBlocks");
+			throw new IOException("readBlocks");
+		}
+		for (int i = 0; i < list.length; i++) {
+			System.arraycopy(rd, i * FelicaLite.SIZE_BLOCK, mBuf, (list[i] - FelicaLite.PAD0) * FelicaLite.SIZE_BLOCK, FelicaLite.SIZE_BLOCK);
+		}
+		mLoaded |= need;
+	}
+}
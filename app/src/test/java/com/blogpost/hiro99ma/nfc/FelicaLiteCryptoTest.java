@@ -0,0 +1,67 @@
+package com.blogpost.hiro99ma.nfc;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * FelicaLiteCryptoのホスト側テスト
+ *
+ * 期待値はOpenSSL(CMAC/3DES-CBC)で別に計算したもの。
+ * マスター鍵はNIST SP 800-38B D.4(3鍵TDEA CMAC)の鍵。
+ */
+public class FelicaLiteCryptoTest {
+    private static final byte[] MASTER_KEY = hex("8aa83bf8cbda10620bc1bf19fbb6cd58bc313d4a371ca8b5");
+    private static final byte[] ID_BLOCK = hex("0127005d0b9b2c9a00b4000000000000");
+    //CMAC(MK, ID) || CMAC(MK, ID ^ 0x80..)
+    private static final byte[] CARD_KEY = hex("654d0ef21a088e58bc225ea05b2f0d87");
+    private static final byte[] RC = hex("00112233445566778899aabbccddeeff");
+    //IDブロックをMAC付きで読んだときのMAC(カード上の並び)
+    private static final byte[] MAC = hex("21883fff5e0122a4");
+
+    @Test
+    public void diversify_matchesCmac() throws Exception {
+        FelicaLiteCrypto crypto = new FelicaLiteCrypto(MASTER_KEY);
+        byte[] key = new byte[FelicaLiteCrypto.SIZE_CARD_KEY + 2];
+        crypto.diversify(ID_BLOCK, 0, key, 2);
+        for (int i = 0; i < FelicaLiteCrypto.SIZE_CARD_KEY; i++) {
+            assertEquals(CARD_KEY[i], key[2 + i]);
+        }
+
+        //作業バッファを使い回しても同じ結果
+        byte[] again = new byte[FelicaLiteCrypto.SIZE_CARD_KEY];
+        crypto.diversify(ID_BLOCK, 0, again, 0);
+        assertArrayEquals(CARD_KEY, again);
+    }
+
+    @Test
+    public void toCardOrder_reversesHalves() throws Exception {
+        byte[] out = new byte[16];
+        FelicaLiteCrypto.toCardOrder(hex("000102030405060708090a0b0c0d0e0f"), 0, out, 0);
+        assertArrayEquals(hex("07060504030201000f0e0d0c0b0a0908"), out);
+    }
+
+    @Test
+    public void verifyMac_knownVector() throws Exception {
+        byte[] data = new byte[32];
+        System.arraycopy(ID_BLOCK, 0, data, 0, 16);
+        System.arraycopy(MAC, 0, data, 16, 8);
+        assertTrue(FelicaLiteCrypto.verifyMac(CARD_KEY, RC, data));
+
+        data[16] ^= 0x01;
+        assertFalse(FelicaLiteCrypto.verifyMac(CARD_KEY, RC, data));
+    }
+
+    @Test(expected = java.security.GeneralSecurityException.class)
+    public void masterKey_lengthChecked() throws Exception {
+        new FelicaLiteCrypto(new byte[16]);
+    }
+
+    private static byte[] hex(String s) {
+        byte[] b = new byte[s.length() / 2];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte)Integer.parseInt(s.substring(i * 2, i * 2 + 2), 16);
+        }
+        return b;
+    }
+}
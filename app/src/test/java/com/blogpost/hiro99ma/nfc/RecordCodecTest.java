@@ -0,0 +1,98 @@
+package com.blogpost.hiro99ma.nfc;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * RecordCodecのホスト側テスト
+ */
+public class RecordCodecTest {
+    private static final long BASE_TIME = 1480000000000L;
+
+    @Test
+    public void bits_roundTrip() throws Exception {
+        RecordCodec.Encoder enc = new RecordCodec.Encoder(BASE_TIME);
+        enc.putBits(5, 3).putBool(true).putBits(0x1234, 16).putBool(false);
+        RecordCodec.Decoder dec = new RecordCodec.Decoder(RecordCodec.decodeUserArea(RecordCodec.encodeUserArea(enc, false)), BASE_TIME);
+        assertEquals(5, dec.getBits(3));
+        assertTrue(dec.getBool());
+        assertEquals(0x1234, dec.getBits(16));
+        assertFalse(dec.getBool());
+        assertFalse(dec.isUnderflow());
+    }
+
+    @Test
+    public void varint_roundTrip() throws Exception {
+        long[] values = { 0, 1, 127, 128, 300, 0x7fffffffL, Long.MAX_VALUE, -1 };
+        long[] signed = { 0, -1, 1, -64, 64, Long.MIN_VALUE, Long.MAX_VALUE };
+        RecordCodec.Encoder enc = new RecordCodec.Encoder(BASE_TIME);
+        for (long v : values) {
+            enc.putVarint(v);
+        }
+        for (long v : signed) {
+            enc.putSignedVarint(v);
+        }
+        enc.putTimestamp(BASE_TIME + 1000).putTimestamp(BASE_TIME + 500);
+        assertFalse(enc.isOverflow());
+
+        RecordCodec.Decoder dec = new RecordCodec.Decoder(RecordCodec.decodeUserArea(RecordCodec.encodeUserArea(enc, true)), BASE_TIME);
+        for (long v : values) {
+            assertEquals(v, dec.getVarint());
+        }
+        for (long v : signed) {
+            assertEquals(v, dec.getSignedVarint());
+        }
+        assertEquals(BASE_TIME + 1000, dec.getTimestamp());
+        assertEquals(BASE_TIME + 500, dec.getTimestamp());
+        assertFalse(dec.isUnderflow());
+    }
+
+    @Test
+    public void zeroRun_compressedAndRestored() throws Exception {
+        byte[] data = new byte[200];
+        data[0] = 0x11;
+        data[100] = 0x22;
+        data[199] = 0x33;
+        RecordCodec.Encoder enc = new RecordCodec.Encoder(BASE_TIME);
+        enc.putBytes(data, 0, data.length);
+
+        byte[] image = RecordCodec.encodeUserArea(enc, true);
+        assertNotNull(image);
+        assertEquals(RecordCodec.USER_AREA_SIZE, image.length);
+        //圧縮されたので1ブロックに収まる
+        assertEquals(1, RecordCodec.usedBlocks(image));
+        assertArrayEquals(data, RecordCodec.decodeUserArea(image));
+    }
+
+    @Test
+    public void compress_notUsedWhenLonger() throws Exception {
+        byte[] data = new byte[] { 1, 0, 2, 0, 3, 0, 4 };
+        RecordCodec.Encoder enc = new RecordCodec.Encoder(BASE_TIME);
+        enc.putBytes(data, 0, data.length);
+
+        byte[] image = RecordCodec.encodeUserArea(enc, true);
+        assertEquals(0, image[0] & 0x80);
+        assertArrayEquals(data, RecordCodec.decodeUserArea(image));
+    }
+
+    @Test
+    public void overflow_rejected() throws Exception {
+        RecordCodec.Encoder enc = new RecordCodec.Encoder(BASE_TIME);
+        byte[] data = new byte[RecordCodec.USER_AREA_SIZE + 1];
+        data[0] = 1;
+        enc.putBytes(data, 0, data.length);
+        assertTrue(enc.isOverflow());
+        assertNull(RecordCodec.encodeUserArea(enc, false));
+    }
+
+    @Test
+    public void changedBlocks_onlyDiff() throws Exception {
+        byte[] oldImage = new byte[RecordCodec.USER_AREA_SIZE];
+        byte[] newImage = oldImage.clone();
+        newImage[FelicaLite.SIZE_BLOCK * 2 + 3] = 1;
+        newImage[FelicaLite.SIZE_BLOCK * 13] = 1;
+        assertArrayEquals(new int[] { FelicaLite.PAD2, FelicaLite.PAD13 }, RecordCodec.changedBlocks(oldImage, newImage));
+        assertEquals(RecordCodec.BLOCK_NUM, RecordCodec.changedBlocks(null, newImage).length);
+    }
+}